@@ -7,21 +7,32 @@ import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.os.Bundle;
+import android.util.Log;
 import androidx.recyclerview.widget.GridLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 import android.view.View;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import james.adaptiveicon.AdaptiveIcon;
+import james.adaptiveicon.IconMemoryGovernor;
+import james.adaptiveicon.IconSnapshot;
+import james.adaptiveicon.LayerInterner;
+import james.adaptiveicon.LoadStats;
+import james.adaptiveicon.ParallaxController;
 import james.adaptiveicon.utils.ConversionUtils;
 
 public class MainActivity extends Activity {
 
     private RecyclerAdapter adapter;
-    private GridLayoutManager layoutManager;
+    private IconMemoryGovernor governor;
+    private AdaptiveIcon.Loader loader;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -29,37 +40,107 @@ public class MainActivity extends Activity {
         setContentView(R.layout.activity_main);
 
         RecyclerView recycler = findViewById(R.id.recycler);
-        layoutManager = new GridLayoutManager(this, 4);
-        recycler.setLayoutManager(layoutManager);
+        recycler.setLayoutManager(new GridLayoutManager(this, 4));
 
         List<ResolveInfo> infos = getPackageManager().queryIntentActivities(new Intent(Intent.ACTION_MAIN).addCategory(Intent.CATEGORY_LAUNCHER), PackageManager.GET_META_DATA);
         Collections.sort(infos, new ResolveInfo.DisplayNameComparator(getPackageManager()));
 
+        IconSnapshot snapshot = null;
+        final File snapshotFile = new File(getCacheDir(), "icons.snapshot");
+        try {
+            snapshot = IconSnapshot.open(snapshotFile);
+        } catch (IOException ignored) {
+        }
+
+        final LoadStats stats = new LoadStats();
+        final LayerInterner interner = new LayerInterner();
+        final List<ResolveInfo> loadedInfos = new ArrayList<>();
         final List<AdaptiveIcon> icons = new ArrayList<>();
-        for (ResolveInfo info : infos) {
-            new AdaptiveIcon.Loader()
-                    .with(this)
-                    .fallback(new AdaptiveIcon.Loader.RoundIconFallback()
-                            .withFallback(new AdaptiveIcon.Loader.LegacyIconFallback()))
-                    .loadAsync(info, new AdaptiveIcon.Loader.AsyncCallback() {
-                        @Override
-                        public void onResult(ResolveInfo info, AdaptiveIcon icon) {
-                            icons.add(icon);
+        final int iconCount = infos.size();
+        // upgraded icons that arrived before the legacy icons that they replace
+        final Map<ResolveInfo, AdaptiveIcon> pendingUpgrades = new HashMap<>();
+        final IconSnapshot.Writer snapshotWriter = new IconSnapshot.Writer();
+        loader = new AdaptiveIcon.Loader()
+                .with(this)
+                .stats(stats)
+                .intern(interner)
+                .deadline(100, new AdaptiveIcon.Loader.AsyncCallback() {
+                    @Override
+                    public void onResult(ResolveInfo info, AdaptiveIcon icon) {
+                        // replace the legacy icon that was shown when the full icon took too long to load
+                        int position = loadedInfos.indexOf(info);
+                        if (position >= 0) {
+                            AdaptiveIcon legacyIcon = icons.set(position, icon);
+                            governor.track(icon);
+                            snapshotWriter.add(getPackageManager(), info, icon);
                             if (adapter != null)
-                                adapter.notifyItemInserted(icons.size() - 1);
+                                adapter.upgradeIcon(position);
+
+                            // the snapshot was already written with the legacy icon, so it is written again
+                            if (icons.size() == iconCount)
+                                snapshotWriter.writeAsync(snapshotFile);
+
+                            // the view still draws the legacy icon until it is rebound, so its bitmaps
+                            // are recycled once the view releases it
+                            if (legacyIcon != null) {
+                                governor.untrack(legacyIcon);
+                                legacyIcon.recycle();
+                            }
+                        } else {
+                            // the legacy icon has not been delivered yet, so it will be replaced when it is
+                            pendingUpgrades.put(info, icon);
                         }
-                    });
+                    }
+                })
+                .size((int) (56 * getResources().getDisplayMetrics().density))
+                .snapshot(snapshot)
+                .fallback(new AdaptiveIcon.Loader.RoundIconFallback()
+                        .withFallback(new AdaptiveIcon.Loader.LegacyIconFallback()));
+
+        governor = new IconMemoryGovernor().withLoader(loader);
+        registerComponentCallbacks(governor);
+
+        for (ResolveInfo info : infos) {
+            loader.loadAsync(info, new AdaptiveIcon.Loader.AsyncCallback() {
+                @Override
+                public void onResult(ResolveInfo info, AdaptiveIcon icon) {
+                    AdaptiveIcon upgradedIcon = pendingUpgrades.remove(info);
+                    if (upgradedIcon != null) {
+                        if (icon != null)
+                            icon.recycle();
+                        icon = upgradedIcon;
+                    }
+
+                    loadedInfos.add(info);
+                    icons.add(icon);
+                    if (adapter != null)
+                        adapter.notifyItemInserted(icons.size() - 1);
+
+                    if (icon != null)
+                        governor.track(icon);
+
+                    snapshotWriter.add(getPackageManager(), info, icon);
+                    if (icons.size() == iconCount) {
+                        snapshotWriter.writeAsync(snapshotFile);
+                        Log.d("MainActivity", "Loaded " + iconCount + " icons:\n" + stats + "\nInterned layers: " + interner);
+                    }
+                }
+            });
         }
 
-        adapter = new RecyclerAdapter(icons);
+        final ParallaxController parallaxController = new ParallaxController(ConversionUtils.dpToPx(24));
+        adapter = new RecyclerAdapter(icons, parallaxController, interner);
         recycler.setAdapter(adapter);
         recycler.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(RecyclerView recyclerView, int newState) {
+                loader.onScrollStateChanged(newState);
+                super.onScrollStateChanged(recyclerView, newState);
+            }
+
             @Override
             public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
-                for (int i = layoutManager.findFirstVisibleItemPosition(); i <= layoutManager.findLastVisibleItemPosition(); i++) {
-                    RecyclerAdapter.ViewHolder viewHolder = (RecyclerAdapter.ViewHolder) recyclerView.findViewHolderForAdapterPosition(i);
-                    viewHolder.iconView.setOffset(0, Math.min(1, (float) dy / ConversionUtils.dpToPx(24)));
-                }
+                parallaxController.onScrolled(0, dy);
                 super.onScrolled(recyclerView, dx, dy);
             }
         });
@@ -86,4 +167,12 @@ public class MainActivity extends Activity {
             }
         });
     }
+
+    @Override
+    protected void onDestroy() {
+        unregisterComponentCallbacks(governor);
+        // the icons that are still deferred are no longer needed
+        loader.cancelAll();
+        super.onDestroy();
+    }
 }
@@ -9,19 +9,35 @@ import java.util.List;
 
 import james.adaptiveicon.AdaptiveIcon;
 import james.adaptiveicon.AdaptiveIconView;
+import james.adaptiveicon.LayerInterner;
+import james.adaptiveicon.ParallaxController;
 
 public class RecyclerAdapter extends RecyclerView.Adapter<RecyclerAdapter.ViewHolder> {
 
+    private static final Object PAYLOAD_PATH = new Object();
+    private static final Object PAYLOAD_UPGRADE = new Object();
+
     private List<AdaptiveIcon> icons;
+    private ParallaxController parallaxController;
+    private LayerInterner interner;
     private int path = AdaptiveIconView.PATH_CIRCLE;
 
-    public RecyclerAdapter(List<AdaptiveIcon> icons) {
+    public RecyclerAdapter(List<AdaptiveIcon> icons, ParallaxController parallaxController, LayerInterner interner) {
         this.icons = icons;
+        this.parallaxController = parallaxController;
+        this.interner = interner;
     }
 
     public void setPath(int path) {
         this.path = path;
-        notifyDataSetChanged();
+        notifyItemRangeChanged(0, getItemCount(), PAYLOAD_PATH);
+    }
+
+    /**
+     * Cross-fades the icon at the given position to the one that replaced it in the list.
+     */
+    public void upgradeIcon(int position) {
+        notifyItemChanged(position, PAYLOAD_UPGRADE);
     }
 
     public int getPathShape() {
@@ -30,7 +46,11 @@ public class RecyclerAdapter extends RecyclerView.Adapter<RecyclerAdapter.ViewHo
 
     @Override
     public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
-        return new ViewHolder(LayoutInflater.from(parent.getContext()).inflate(R.layout.item_icon, parent, false));
+        ViewHolder holder = new ViewHolder(LayoutInflater.from(parent.getContext()).inflate(R.layout.item_icon, parent, false));
+        holder.iconView.setParallaxController(parallaxController);
+        holder.iconView.setInterner(interner);
+        holder.iconView.setHardwareLayers(true);
+        return holder;
     }
 
     @Override
@@ -40,6 +60,15 @@ public class RecyclerAdapter extends RecyclerView.Adapter<RecyclerAdapter.ViewHo
         holder.iconView.setPath(path);
     }
 
+    @Override
+    public void onBindViewHolder(ViewHolder holder, int position, List<Object> payloads) {
+        if (payloads.contains(PAYLOAD_PATH))
+            holder.iconView.setPath(path, true);
+        else if (payloads.contains(PAYLOAD_UPGRADE))
+            holder.iconView.setIcon(icons.get(position), true);
+        else super.onBindViewHolder(holder, position, payloads);
+    }
+
     @Override
     public int getItemCount() {
         return icons.size();
@@ -0,0 +1,229 @@
+package james.adaptiveiconsample;
+
+import android.app.Activity;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.ColorDrawable;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Debug;
+import android.os.Handler;
+import android.util.Log;
+import android.view.ViewGroup;
+import android.widget.GridLayout;
+import android.widget.LinearLayout;
+import android.widget.TextView;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import james.adaptiveicon.AdaptiveIcon;
+import james.adaptiveicon.AdaptiveIconView;
+import james.adaptiveicon.IconMemoryGovernor;
+import james.adaptiveicon.LayerInterner;
+import james.adaptiveicon.utils.ConversionUtils;
+
+/**
+ * Binds and recycles thousands of icons through a grid of AdaptiveIconViews,
+ * detaching and reattaching the views between rounds as a RecyclerView does,
+ * and checks that the memory retained after each round does not keep growing.
+ * Run it with:
+ *
+ * adb shell am start -n james.adaptiveiconsample/.SoakActivity
+ *
+ * The result is shown on screen and logged with the "SoakActivity" tag. This
+ * is a manual check that does not fail any build; the library's ViewSoakTest
+ * runs the same binds as a unit test, but cannot measure the native heap.
+ */
+public class SoakActivity extends Activity {
+
+    private static final String TAG = "SoakActivity";
+
+    private static final int VIEWS = 24;
+    private static final int BINDS_PER_ROUND = 10;
+    private static final int ROUNDS = 40;
+    // rounds to run before measuring the baseline, while caches and pools fill up
+    private static final int WARMUP_ROUNDS = 5;
+    private static final long FRAME_MILLIS = 16;
+
+    private final Handler handler = new Handler();
+    private final Random random = new Random(0);
+    private final List<AdaptiveIconView> views = new ArrayList<>();
+    private final List<AdaptiveIcon> icons = new ArrayList<>();
+    private final List<Long> retained = new ArrayList<>();
+
+    private GridLayout grid;
+    private TextView status;
+    private IconMemoryGovernor governor;
+    private LayerInterner interner;
+    private int round, bind;
+    private long baselineGcCount;
+    private boolean isStopped;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+
+        LinearLayout layout = new LinearLayout(this);
+        layout.setOrientation(LinearLayout.VERTICAL);
+        status = new TextView(this);
+        layout.addView(status);
+
+        grid = new GridLayout(this);
+        grid.setColumnCount(6);
+        layout.addView(grid);
+        setContentView(layout);
+
+        // an unlimited budget, so that the governor only measures memory
+        governor = new IconMemoryGovernor(Long.MAX_VALUE);
+        interner = new LayerInterner();
+
+        int size = ConversionUtils.dpToPx(48);
+        for (int i = 0; i < VIEWS; i++) {
+            AdaptiveIconView view = new AdaptiveIconView(this);
+            view.setLayoutParams(new ViewGroup.LayoutParams(size, size));
+            view.setInterner(interner);
+            governor.track(view);
+            views.add(view);
+            icons.add(null);
+        }
+
+        attachViews();
+        baselineGcCount = getGcCount();
+        handler.post(bindRunnable);
+    }
+
+    @Override
+    protected void onDestroy() {
+        isStopped = true;
+        handler.removeCallbacksAndMessages(null);
+        for (AdaptiveIconView view : views) {
+            view.setIcon(null);
+        }
+        for (AdaptiveIcon icon : icons) {
+            if (icon != null)
+                icon.recycle();
+        }
+        super.onDestroy();
+    }
+
+    private final Runnable bindRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (isStopped)
+                return;
+
+            // bind a new icon to every view, recycling the previous one as an adapter would
+            for (int i = 0; i < views.size(); i++) {
+                AdaptiveIcon icon = createIcon().prepare();
+                AdaptiveIcon previous = icons.set(i, icon);
+                governor.track(icon);
+                views.get(i).setIcon(icon);
+                if (previous != null)
+                    previous.recycle();
+            }
+
+            if (++bind < BINDS_PER_ROUND) {
+                handler.postDelayed(this, FRAME_MILLIS);
+                return;
+            }
+
+            bind = 0;
+            endRound();
+        }
+    };
+
+    /**
+     * Detaches and reattaches the views, measures the retained memory, and
+     * either starts the next round or reports the result.
+     */
+    private void endRound() {
+        grid.removeAllViews();
+        measure();
+        attachViews();
+
+        if (++round < ROUNDS)
+            handler.postDelayed(bindRunnable, FRAME_MILLIS);
+        else report();
+    }
+
+    private void attachViews() {
+        for (AdaptiveIconView view : views) {
+            grid.addView(view);
+        }
+    }
+
+    private void measure() {
+        Runtime runtime = Runtime.getRuntime();
+        runtime.gc();
+        runtime.runFinalization();
+        runtime.gc();
+
+        long bytes = governor.getByteCount();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O)
+            bytes += Debug.getNativeHeapAllocatedSize(); // bitmap pixels are allocated natively
+        else bytes += runtime.totalMemory() - runtime.freeMemory();
+
+        retained.add(bytes);
+        status.setText(String.format(Locale.US, "Round %d/%d: %.1f MB retained, %d GCs", round + 1, ROUNDS, bytes / 1048576f, getGcCount() - baselineGcCount));
+    }
+
+    /**
+     * Fails if the memory retained in the final rounds is larger than the
+     * baseline by more than a quarter (or 8 MB, whichever is larger).
+     */
+    private void report() {
+        long baseline = 0;
+        for (int i = WARMUP_ROUNDS; i < WARMUP_ROUNDS * 2; i++) {
+            baseline = Math.max(baseline, retained.get(i));
+        }
+
+        long last = Long.MAX_VALUE;
+        for (int i = retained.size() - WARMUP_ROUNDS; i < retained.size(); i++) {
+            last = Math.min(last, retained.get(i));
+        }
+
+        long tolerance = Math.max(baseline / 4, 8 * 1048576);
+        boolean isPassed = last <= baseline + tolerance;
+        String result = String.format(Locale.US, "%s: bound %d icons, retained %.1f MB at the baseline and %.1f MB at the end, %d GCs, %s",
+                isPassed ? "PASS" : "FAIL", ROUNDS * BINDS_PER_ROUND * VIEWS, baseline / 1048576f, last / 1048576f,
+                getGcCount() - baselineGcCount, interner);
+
+        status.setText(result);
+        if (isPassed)
+            Log.i(TAG, result);
+        else Log.e(TAG, result + "\nretained bytes per round: " + retained);
+    }
+
+    /**
+     * @return the amount of garbage collections since the process started, or -1 if it is not available
+     */
+    private static long getGcCount() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M)
+            return -1;
+
+        String count = Debug.getRuntimeStat("art.gc.gc-count");
+        return count != null ? Long.parseLong(count) : -1;
+    }
+
+    /**
+     * Creates an icon with a plain background - from a small set of colors,
+     * so that some of them are interned - and a randomly colored foreground,
+     * as a stand-in for a loaded icon.
+     */
+    private AdaptiveIcon createIcon() {
+        int[] backgrounds = {Color.WHITE, 0xFF2196F3, 0xFF4CAF50, 0xFFFFC107};
+        Bitmap foreground = Bitmap.createBitmap(96, 96, Bitmap.Config.ARGB_8888);
+        Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        paint.setColor(Color.HSVToColor(new float[]{random.nextInt(360), 0.8f, 0.8f}));
+        new Canvas(foreground).drawCircle(48, 48, 16 + random.nextInt(16), paint);
+
+        return new AdaptiveIcon(new BitmapDrawable(getResources(), foreground), new ColorDrawable(backgrounds[random.nextInt(backgrounds.length)]), 0.5);
+    }
+
+}
@@ -0,0 +1,139 @@
+package james.adaptiveicon.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+import james.adaptiveicon.core.PathDataNode;
+import james.adaptiveicon.core.PathParser;
+import james.adaptiveicon.core.PathSink;
+
+/**
+ * Measures parsing path data, replaying it into a path, and interpolating
+ * between two shapes (one frame of a morph animation).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PathParserBenchmark {
+
+    // the circle and squircle presets of AdaptiveIconView, which have the same structure
+    private static final String CIRCLE = "M 50,0 C 50,0 50,0 50,0 77.62,0 100,22.38 100,50 100,50 100,50 100,50 "
+            + "100,50 100,50 100,50 100,77.62 77.62,100 50,100 50,100 50,100 50,100 "
+            + "50,100 50,100 50,100 22.38,100 0,77.62 0,50 0,50 0,50 0,50 "
+            + "0,50 0,50 0,50 0,22.38 22.38,0 50,0 50,0 50,0 50,0 Z";
+    private static final String SQUIRCLE = "M 50,0 C 50,0 50,0 50,0 90,0 100,10 100,50 100,50 100,50 100,50 "
+            + "100,50 100,50 100,50 100,90 90,100 50,100 50,100 50,100 50,100 "
+            + "50,100 50,100 50,100 10,100 0,90 0,50 0,50 0,50 0,50 "
+            + "0,50 0,50 0,50 0,10 10,0 50,0 50,0 50,0 50,0 Z";
+    // a path using relative, smooth and arc commands
+    private static final String MIXED = "M12,2 C6.48,2 2,6.48 2,12 s4.48,10 10,10 10,-4.48 10,-10 "
+            + "S17.52,2 12,2 z M12,20 c-4.41,0 -8,-3.59 -8,-8 s3.59,-8 8,-8 8,3.59 8,8 -3.59,8 -8,8 z "
+            + "M7,12 a5,5 0 1,0 10,0 a5,5 0 1,0 -10,0 z M3,3 h18 v18 H3 V3 l2,2 L3,3 q2,2 4,0 t4,0 z";
+
+    @Param({"circle", "mixed"})
+    public String shape;
+
+    private String pathData;
+    private PathDataNode[] nodes, fromNodes, toNodes, morphNodes;
+    private final float[] current = new float[4];
+    private CountingSink sink;
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        sink = new CountingSink(blackhole);
+        pathData = shape.equals("circle") ? CIRCLE : MIXED;
+        nodes = PathParser.createNodesFromPathData(pathData);
+        fromNodes = PathParser.createNodesFromPathData(CIRCLE);
+        toNodes = PathParser.createNodesFromPathData(SQUIRCLE);
+        morphNodes = PathParser.deepCopyNodes(fromNodes);
+    }
+
+    @Benchmark
+    public PathDataNode[] parse() {
+        return PathParser.createNodesFromPathData(pathData);
+    }
+
+    @Benchmark
+    public void replay() {
+        PathParser.nodesToPath(nodes, sink, current);
+    }
+
+    @Benchmark
+    public void morphFrame() {
+        PathParser.interpolateNodes(morphNodes, fromNodes, toNodes, 0.5f);
+        PathParser.nodesToPath(morphNodes, sink, current);
+    }
+
+    /**
+     * Consumes every segment, so that the replay cannot be optimized away.
+     */
+    private static class CountingSink implements PathSink {
+
+        private final Blackhole blackhole;
+
+        private CountingSink(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void moveTo(float x, float y) {
+            blackhole.consume(x + y);
+        }
+
+        @Override
+        public void rMoveTo(float dx, float dy) {
+            blackhole.consume(dx + dy);
+        }
+
+        @Override
+        public void lineTo(float x, float y) {
+            blackhole.consume(x + y);
+        }
+
+        @Override
+        public void rLineTo(float dx, float dy) {
+            blackhole.consume(dx + dy);
+        }
+
+        @Override
+        public void quadTo(float x1, float y1, float x2, float y2) {
+            blackhole.consume(x1 + y1 + x2 + y2);
+        }
+
+        @Override
+        public void rQuadTo(float dx1, float dy1, float dx2, float dy2) {
+            blackhole.consume(dx1 + dy1 + dx2 + dy2);
+        }
+
+        @Override
+        public void cubicTo(float x1, float y1, float x2, float y2, float x3, float y3) {
+            blackhole.consume(x1 + y1 + x2 + y2 + x3 + y3);
+        }
+
+        @Override
+        public void rCubicTo(float dx1, float dy1, float dx2, float dy2, float dx3, float dy3) {
+            blackhole.consume(dx1 + dy1 + dx2 + dy2 + dx3 + dy3);
+        }
+
+        @Override
+        public void close() {
+            blackhole.consume(0);
+        }
+    }
+
+}
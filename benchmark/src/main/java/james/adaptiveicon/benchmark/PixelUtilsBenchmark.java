@@ -0,0 +1,125 @@
+package james.adaptiveicon.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import james.adaptiveicon.core.PixelUtils;
+
+/**
+ * Measures the pixel loops that the fallbacks run on every legacy icon, on
+ * synthetic icons of typical launcher sizes (48dp at mdpi to xxxhdpi, and a
+ * 108dp xxxhdpi adaptive layer).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PixelUtilsBenchmark {
+
+    @Param({"48", "192", "432"})
+    public int size;
+
+    private int[] icon;
+    // the same icon filled to the edges, as a square legacy icon would be
+    private int[] opaqueIcon;
+    private int[] pixels;
+
+    @Setup
+    public void setup() {
+        icon = createIcon(size, new Random(size));
+        opaqueIcon = icon.clone();
+        for (int i = 0; i < opaqueIcon.length; i++) {
+            if (opaqueIcon[i] >>> 24 != 0xFF)
+                opaqueIcon[i] = 0xFFFFFFFF;
+        }
+
+        pixels = new int[icon.length];
+    }
+
+    /**
+     * Restores the pixels that removeShadow modifies. Restoring them before
+     * every invocation would add JMH's per-invocation overhead to a loop of a
+     * few microseconds, and removeShadow is idempotent - later invocations
+     * visit and clear the same pixels as the first - so once per iteration
+     * measures the same work.
+     */
+    @Setup(Level.Iteration)
+    public void resetPixels() {
+        System.arraycopy(icon, 0, pixels, 0, icon.length);
+    }
+
+    @Benchmark
+    public int dominantColor() {
+        return PixelUtils.getDominantColor(icon);
+    }
+
+    /**
+     * The icon's corners are transparent, so this only measures how quickly
+     * the loop exits at the first pixel.
+     */
+    @Benchmark
+    public boolean hasTransparency() {
+        return PixelUtils.hasTransparency(icon);
+    }
+
+    /**
+     * Without any transparent pixels, every pixel is visited, which is the
+     * full cost of the loop.
+     */
+    @Benchmark
+    public boolean hasTransparencyOpaque() {
+        return PixelUtils.hasTransparency(opaqueIcon);
+    }
+
+    @Benchmark
+    public long hash() {
+        return PixelUtils.hash(icon);
+    }
+
+    @Benchmark
+    public int[] removeShadow() {
+        PixelUtils.removeShadow(pixels);
+        return pixels;
+    }
+
+    /**
+     * Creates a legacy-style icon: a round, mostly flat colored shape with a
+     * little noise, surrounded by a soft shadow and transparent corners.
+     */
+    private static int[] createIcon(int size, Random random) {
+        int[] pixels = new int[size * size];
+        float center = size / 2f, radius = size * 0.42f, shadow = size * 0.48f;
+        int[] palette = {0xFF2196F3, 0xFF1E88E5, 0xFFFFFFFF, 0xFF0D47A1};
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                float distance = (float) Math.hypot(x - center, y - center);
+                if (distance < radius) {
+                    // mostly the first color, as in a typical flat icon
+                    int index = random.nextInt(10);
+                    pixels[y * size + x] = palette[index < 7 ? 0 : index - 6];
+                } else if (distance < shadow) {
+                    int alpha = (int) (64 * (shadow - distance) / (shadow - radius));
+                    pixels[y * size + x] = alpha << 24;
+                }
+            }
+        }
+
+        return pixels;
+    }
+
+}
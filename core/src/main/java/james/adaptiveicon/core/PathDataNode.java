@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+/*
+ * Modified by James Fenn
+ * Changes:
+ * - moved out of PathUtils into the platform independent core module
+ */
+
+package james.adaptiveicon.core;
+
+import java.util.Arrays;
+
+/**
+ * A single command of a path, along with its parameters.
+ */
+public class PathDataNode {
+
+    char mType;
+    float[] mParams;
+
+    PathDataNode(char type, float[] params) {
+        mType = type;
+        mParams = params;
+    }
+
+    /**
+     * Creates a deep copy of another node.
+     *
+     * @param n the node to copy
+     */
+    protected PathDataNode(PathDataNode n) {
+        mType = n.mType;
+        mParams = Arrays.copyOf(n.mParams, n.mParams.length);
+    }
+
+    /**
+     * @return the command of this node, as in the path data string
+     */
+    public char getType() {
+        return mType;
+    }
+
+    /**
+     * The current PathDataNode will be interpolated between the
+     * <code>nodeFrom</code> and <code>nodeTo</code> according to the
+     * <code>fraction</code>.
+     *
+     * @param nodeFrom The start value as a PathDataNode.
+     * @param nodeTo   The end value as a PathDataNode
+     * @param fraction The fraction to interpolate.
+     */
+    public void interpolatePathDataNode(PathDataNode nodeFrom, PathDataNode nodeTo, float fraction) {
+        for (int i = 0; i < nodeFrom.mParams.length; i++) {
+            mParams[i] = nodeFrom.mParams[i] * (1 - fraction) + nodeTo.mParams[i] * fraction;
+        }
+    }
+
+}
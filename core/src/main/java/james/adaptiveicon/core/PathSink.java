@@ -0,0 +1,29 @@
+package james.adaptiveicon.core;
+
+/**
+ * Receives the segments of a path as it is replayed by PathParser, so that
+ * path data can be converted into any platform's path representation. The
+ * relative methods are relative to the end of the previous segment, in the
+ * same way as android.graphics.Path.
+ */
+public interface PathSink {
+
+    void moveTo(float x, float y);
+
+    void rMoveTo(float dx, float dy);
+
+    void lineTo(float x, float y);
+
+    void rLineTo(float dx, float dy);
+
+    void quadTo(float x1, float y1, float x2, float y2);
+
+    void rQuadTo(float dx1, float dy1, float dx2, float dy2);
+
+    void cubicTo(float x1, float y1, float x2, float y2, float x3, float y3);
+
+    void rCubicTo(float dx1, float dy1, float dx2, float dy2, float dx3, float dy3);
+
+    void close();
+
+}
@@ -0,0 +1,88 @@
+package james.adaptiveicon.core;
+
+import java.util.Arrays;
+
+/**
+ * Pixel operations on packed ARGB colors (the format of Bitmap.getPixels),
+ * independent of any platform bitmap class.
+ */
+public class PixelUtils {
+
+    /**
+     * @param pixels an array of ARGB colors
+     * @return true if any of the pixels are not fully opaque
+     */
+    public static boolean hasTransparency(int[] pixels) {
+        for (int pixel : pixels) {
+            if ((pixel >>> 24) < 255)
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Replaces every pixel that is not fully opaque with a transparent pixel,
+     * removing the shadow (and any other transparent parts) of an icon.
+     *
+     * @param pixels an array of ARGB colors, which is modified in place
+     */
+    public static void removeShadow(int[] pixels) {
+        for (int i = 0; i < pixels.length; i++) {
+            if ((pixels[i] >>> 24) < 255)
+                pixels[i] = 0;
+        }
+    }
+
+    /**
+     * Finds the opaque color with the most occurrences in an array of pixels.
+     * If several colors occur equally often, the lowest color value is returned.
+     *
+     * @param pixels an array of ARGB colors
+     * @return the dominant color, or transparent if none of the pixels are opaque
+     */
+    public static int getDominantColor(int[] pixels) {
+        // sorting a copy of the opaque pixels groups equal colors together, which
+        // is several times faster than counting them in a map of boxed integers
+        int[] colors = new int[pixels.length];
+        int count = 0;
+        for (int pixel : pixels) {
+            if ((pixel >>> 24) == 255)
+                colors[count++] = pixel;
+        }
+
+        Arrays.sort(colors, 0, count);
+
+        int color = 0;
+        int occurrences = 0;
+        for (int i = 0; i < count; ) {
+            int start = i;
+            while (i < count && colors[i] == colors[start])
+                i++;
+
+            if (i - start > occurrences) {
+                occurrences = i - start;
+                color = colors[start];
+            }
+        }
+
+        return color;
+    }
+
+    /**
+     * Computes a 64-bit FNV-1a hash of an array of pixels, for finding images
+     * with identical contents. Equal hashes do not guarantee equal pixels.
+     *
+     * @param pixels an array of ARGB colors
+     * @return the hash of the pixels
+     */
+    public static long hash(int[] pixels) {
+        long hash = 0xcbf29ce484222325L;
+        for (int pixel : pixels) {
+            hash = (hash ^ pixel) * 0x100000001b3L;
+        }
+
+        return hash;
+    }
+
+}
@@ -0,0 +1,149 @@
+package james.adaptiveicon.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+public class PathParserTest {
+
+    @Test
+    public void parsesCommands() {
+        PathDataNode[] nodes = PathParser.createNodesFromPathData("M0,0 L10,0 L10,10 Z");
+        assertEquals(4, nodes.length);
+        assertEquals('M', nodes[0].getType());
+        assertEquals('L', nodes[1].getType());
+        assertEquals('L', nodes[2].getType());
+        assertEquals('Z', nodes[3].getType());
+    }
+
+    @Test
+    public void replaysAbsoluteCommands() {
+        assertEquals(Arrays.asList("moveTo 0.0 0.0", "lineTo 10.0 0.0", "lineTo 10.0 10.0", "close"),
+                replay(PathParser.createNodesFromPathData("M0,0 L10,0 L10,10 Z")));
+    }
+
+    @Test
+    public void replaysRelativeCommands() {
+        assertEquals(Arrays.asList("rMoveTo 5.0 5.0", "rLineTo 10.0 0.0", "rLineTo 0.0 -10.0", "close"),
+                replay(PathParser.createNodesFromPathData("m5 5 l10 0 l0,-10 z")));
+    }
+
+    @Test
+    public void replaysRepeatedParameters() {
+        // a command followed by several sets of parameters is repeated for each
+        assertEquals(Arrays.asList("moveTo 0.0 0.0", "lineTo 1.0 2.0", "lineTo 3.0 4.0"),
+                replay(PathParser.createNodesFromPathData("M0,0 L1,2 3,4")));
+    }
+
+    @Test
+    public void canMorphPathsWithTheSameCommands() {
+        PathDataNode[] square = PathParser.createNodesFromPathData("M0,0 L10,0 L10,10 Z");
+        PathDataNode[] moved = PathParser.createNodesFromPathData("M5,5 L20,5 L20,20 Z");
+        PathDataNode[] triangle = PathParser.createNodesFromPathData("M0,0 L10,0 Z");
+        PathDataNode[] curved = PathParser.createNodesFromPathData("M0,0 Q10,0 10,10 Z");
+
+        assertTrue(PathParser.canMorph(square, moved));
+        assertFalse(PathParser.canMorph(square, triangle));
+        assertFalse(PathParser.canMorph(square, curved));
+        assertFalse(PathParser.canMorph(square, null));
+    }
+
+    @Test
+    public void interpolatesIntoTheTargetNodes() {
+        PathDataNode[] from = PathParser.createNodesFromPathData("M0,0 L10,0 Z");
+        PathDataNode[] to = PathParser.createNodesFromPathData("M5,5 L20,5 Z");
+        PathDataNode[] target = PathParser.deepCopyNodes(from);
+
+        PathParser.interpolateNodes(target, from, to, 0.5f);
+        assertEquals(Arrays.asList("moveTo 2.5 2.5", "lineTo 15.0 2.5", "close"), replay(target));
+        // the source nodes are not modified
+        assertEquals(Arrays.asList("moveTo 0.0 0.0", "lineTo 10.0 0.0", "close"), replay(from));
+    }
+
+    @Test
+    public void deepCopiesAreIndependent() {
+        PathDataNode[] nodes = PathParser.createNodesFromPathData("M0,0 L10,0 Z");
+        PathDataNode[] copy = PathParser.deepCopyNodes(nodes);
+        assertNotSame(nodes[0], copy[0]);
+
+        PathParser.updateNodes(copy, PathParser.createNodesFromPathData("M1,1 L2,2 Z"));
+        assertEquals(Arrays.asList("moveTo 1.0 1.0", "lineTo 2.0 2.0", "close"), replay(copy));
+        assertEquals(Arrays.asList("moveTo 0.0 0.0", "lineTo 10.0 0.0", "close"), replay(nodes));
+    }
+
+    private static List<String> replay(PathDataNode[] nodes) {
+        RecordingSink sink = new RecordingSink();
+        PathParser.nodesToPath(nodes, sink, new float[4]);
+        return sink.segments;
+    }
+
+    /**
+     * Records each segment that is appended to it as a string.
+     */
+    private static class RecordingSink implements PathSink {
+
+        private final List<String> segments = new ArrayList<>();
+
+        private void record(String command, float... values) {
+            StringBuilder builder = new StringBuilder(command);
+            for (float value : values) {
+                builder.append(' ').append(value);
+            }
+
+            segments.add(builder.toString());
+        }
+
+        @Override
+        public void moveTo(float x, float y) {
+            record("moveTo", x, y);
+        }
+
+        @Override
+        public void rMoveTo(float dx, float dy) {
+            record("rMoveTo", dx, dy);
+        }
+
+        @Override
+        public void lineTo(float x, float y) {
+            record("lineTo", x, y);
+        }
+
+        @Override
+        public void rLineTo(float dx, float dy) {
+            record("rLineTo", dx, dy);
+        }
+
+        @Override
+        public void quadTo(float x1, float y1, float x2, float y2) {
+            record("quadTo", x1, y1, x2, y2);
+        }
+
+        @Override
+        public void rQuadTo(float dx1, float dy1, float dx2, float dy2) {
+            record("rQuadTo", dx1, dy1, dx2, dy2);
+        }
+
+        @Override
+        public void cubicTo(float x1, float y1, float x2, float y2, float x3, float y3) {
+            record("cubicTo", x1, y1, x2, y2, x3, y3);
+        }
+
+        @Override
+        public void rCubicTo(float dx1, float dy1, float dx2, float dy2, float dx3, float dy3) {
+            record("rCubicTo", dx1, dy1, dx2, dy2, dx3, dy3);
+        }
+
+        @Override
+        public void close() {
+            record("close");
+        }
+    }
+
+}
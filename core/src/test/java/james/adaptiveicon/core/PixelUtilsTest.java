@@ -0,0 +1,96 @@
+package james.adaptiveicon.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PixelUtilsTest {
+
+    private static final int RED = 0xFFFF0000;
+    private static final int GREEN = 0xFF00FF00;
+    private static final int BLUE = 0xFF0000FF;
+    private static final int SHADOW = 0x40000000;
+
+    @Test
+    public void dominantColorIsTheMostFrequentOpaqueColor() {
+        int[] pixels = {RED, GREEN, GREEN, BLUE, GREEN, RED};
+        assertEquals(GREEN, PixelUtils.getDominantColor(pixels));
+    }
+
+    @Test
+    public void dominantColorTieIsTheLowestColorValue() {
+        // RED and GREEN occur equally often; GREEN is the lower (more negative) int
+        int[] pixels = {RED, RED, GREEN, GREEN};
+        assertEquals(GREEN, PixelUtils.getDominantColor(pixels));
+
+        int[] reversed = {GREEN, GREEN, RED, RED};
+        assertEquals(GREEN, PixelUtils.getDominantColor(reversed));
+    }
+
+    @Test
+    public void dominantColorIgnoresTransparentPixels() {
+        int[] pixels = {SHADOW, SHADOW, SHADOW, 0, 0, BLUE};
+        assertEquals(BLUE, PixelUtils.getDominantColor(pixels));
+    }
+
+    @Test
+    public void dominantColorOfTransparentPixelsIsTransparent() {
+        assertEquals(0, PixelUtils.getDominantColor(new int[]{SHADOW, 0}));
+        assertEquals(0, PixelUtils.getDominantColor(new int[0]));
+    }
+
+    @Test
+    public void hasTransparency() {
+        assertFalse(PixelUtils.hasTransparency(new int[]{RED, GREEN, BLUE}));
+        assertTrue(PixelUtils.hasTransparency(new int[]{RED, SHADOW, BLUE}));
+    }
+
+    /**
+     * The loops that these methods replaced iterated x up to the height and y
+     * up to the width, so on a 4x2 image they never reached the last two
+     * columns. The pixels here are in row major order, as from getPixels.
+     */
+    @Test
+    public void nonSquarePixelsAreAllVisited() {
+        int[] pixels = {
+                RED, RED, RED, SHADOW,
+                RED, RED, BLUE, BLUE
+        };
+
+        assertTrue(PixelUtils.hasTransparency(pixels));
+
+        int[] wide = {
+                RED, RED, BLUE, BLUE,
+                RED, BLUE, BLUE, BLUE
+        };
+        assertEquals(BLUE, PixelUtils.getDominantColor(wide));
+
+        PixelUtils.removeShadow(pixels);
+        assertArrayEquals(new int[]{
+                RED, RED, RED, 0,
+                RED, RED, BLUE, BLUE
+        }, pixels);
+    }
+
+    @Test
+    public void removeShadowOnlyKeepsOpaquePixels() {
+        int[] pixels = {RED, SHADOW, 0xFEFFFFFF, BLUE};
+        PixelUtils.removeShadow(pixels);
+        assertArrayEquals(new int[]{RED, 0, 0, BLUE}, pixels);
+    }
+
+    @Test
+    public void hashDependsOnEveryPixel() {
+        int[] pixels = {RED, GREEN, BLUE, SHADOW};
+        assertEquals(PixelUtils.hash(pixels), PixelUtils.hash(pixels.clone()));
+
+        int[] changed = pixels.clone();
+        changed[3] = 0;
+        assertNotEquals(PixelUtils.hash(pixels), PixelUtils.hash(changed));
+    }
+
+}
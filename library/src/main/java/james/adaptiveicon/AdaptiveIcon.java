@@ -8,6 +8,7 @@ import android.content.res.Resources;
 import android.content.res.XmlResourceParser;
 import android.graphics.Bitmap;
 import android.graphics.Color;
+import android.graphics.drawable.AdaptiveIconDrawable;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
@@ -16,12 +17,38 @@ import android.os.Handler;
 import android.os.Looper;
 import androidx.annotation.ColorInt;
 import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
 import androidx.core.content.res.ResourcesCompat;
 import android.util.Log;
 
 import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import james.adaptiveicon.utils.ImageUtils;
+import james.adaptiveicon.utils.PackageUtils;
 import james.adaptiveicon.utils.ResourceUtils;
 
 public class AdaptiveIcon {
@@ -29,12 +56,27 @@ public class AdaptiveIcon {
     private static final String ANDROID_SCHEMA = "http://schemas.android.com/apk/res/android";
     private static final String[] IC_DIRS = new String[]{"mipmap", "drawable"};
     private static final String[] IC_CONFIGS = new String[]{"-anydpi-v26", "-v26", ""};
+    private static final float LAYER_SIZE_DP = 108;
 
-    private Drawable fgDrawable;
-    private Drawable bgDrawable;
-    private Bitmap fgBitmap;
-    private Bitmap bgBitmap;
-    private double scale;
+    private final double scale;
+    private final int bitmapSize;
+
+    // guarded by this; volatile so that initialized values can be read without locking
+    private volatile Drawable fgDrawable;
+    private volatile Drawable bgDrawable;
+    private volatile Bitmap fgBitmap;
+    private volatile Bitmap bgBitmap;
+
+    @Nullable
+    private volatile ResolveInfo info;
+    // shares the bitmaps created from the drawables with other icons
+    @Nullable
+    private volatile LayerInterner interner;
+    @Nullable
+    private IconMemoryGovernor evictedBy;
+    private boolean isReloading;
+    private int references;
+    private boolean isRecycled;
 
     /**
      * @param fgDrawable the foreground drawable
@@ -42,9 +84,20 @@ public class AdaptiveIcon {
      * @param scale      the scale to apply to the clipped drawables (assuming that bgDrawable is not null)
      */
     public AdaptiveIcon(Drawable fgDrawable, Drawable bgDrawable, double scale) {
+        this(fgDrawable, bgDrawable, scale, 0);
+    }
+
+    /**
+     * @param fgDrawable the foreground drawable
+     * @param bgDrawable the background drawable, or null if the foreground drawable should not be clipped
+     * @param scale      the scale to apply to the clipped drawables (assuming that bgDrawable is not null)
+     * @param bitmapSize the maximum size of the bitmaps created from the drawables, or 0 for no limit
+     */
+    AdaptiveIcon(Drawable fgDrawable, Drawable bgDrawable, double scale, int bitmapSize) {
         this.fgDrawable = fgDrawable;
         this.bgDrawable = bgDrawable;
         this.scale = scale;
+        this.bitmapSize = bitmapSize;
     }
 
     /**
@@ -56,6 +109,7 @@ public class AdaptiveIcon {
         this.fgBitmap = fgBitmap;
         this.bgBitmap = bgBitmap;
         this.scale = scale;
+        bitmapSize = 0;
     }
 
     /**
@@ -63,9 +117,15 @@ public class AdaptiveIcon {
      * @return the foreground drawable of the icon
      */
     public Drawable getFgDrawable(Context context) {
-        if (fgDrawable == null)
-            fgDrawable = new BitmapDrawable(context.getResources(), fgBitmap);
-        return fgDrawable;
+        Drawable drawable = fgDrawable;
+        if (drawable == null) {
+            synchronized (this) {
+                if (fgDrawable == null)
+                    fgDrawable = new BitmapDrawable(context.getResources(), getFgBitmap());
+                drawable = fgDrawable;
+            }
+        }
+        return drawable;
     }
 
     /**
@@ -74,18 +134,33 @@ public class AdaptiveIcon {
      */
     @Nullable
     public Drawable getBgDrawable(Context context) {
-        if (bgDrawable == null)
-            bgDrawable = new BitmapDrawable(context.getResources(), bgBitmap);
-        return bgDrawable;
+        Drawable drawable = bgDrawable;
+        if (drawable == null) {
+            synchronized (this) {
+                if (bgDrawable == null)
+                    bgDrawable = new BitmapDrawable(context.getResources(), getBgBitmap());
+                drawable = bgDrawable;
+            }
+        }
+        return drawable;
     }
 
     /**
      * @return the foreground bitmap of the icon
      */
     public Bitmap getFgBitmap() {
-        if (fgBitmap == null)
-            fgBitmap = ImageUtils.drawableToBitmap(fgDrawable);
-        return fgBitmap;
+        Bitmap bitmap = fgBitmap;
+        if (bitmap == null) {
+            synchronized (this) {
+                if (fgBitmap == null && !isRecycled) {
+                    if (evictedBy != null)
+                        requestReload();
+                    else fgBitmap = intern(ImageUtils.drawableToBitmap(fgDrawable, bitmapSize), fgDrawable);
+                }
+                bitmap = fgBitmap;
+            }
+        }
+        return bitmap;
     }
 
     /**
@@ -93,9 +168,18 @@ public class AdaptiveIcon {
      */
     @Nullable
     public Bitmap getBgBitmap() {
-        if (bgBitmap == null)
-            bgBitmap = ImageUtils.drawableToBitmap(bgDrawable);
-        return bgBitmap;
+        Bitmap bitmap = bgBitmap;
+        if (bitmap == null) {
+            synchronized (this) {
+                if (bgBitmap == null && !isRecycled) {
+                    if (evictedBy != null)
+                        requestReload();
+                    else bgBitmap = intern(ImageUtils.drawableToBitmap(bgDrawable, bitmapSize), bgDrawable);
+                }
+                bitmap = bgBitmap;
+            }
+        }
+        return bitmap;
     }
 
     public double getScale() {
@@ -103,205 +187,1336 @@ public class AdaptiveIcon {
     }
 
     /**
-     * Recycles the bitmaps used in this icon
+     * @return the foreground drawable that the icon was created with, without creating one from its bitmap
+     */
+    @Nullable
+    Drawable peekFgDrawable() {
+        return fgDrawable;
+    }
+
+    /**
+     * @return the background drawable that the icon was created with, without creating one from its bitmap
+     */
+    @Nullable
+    Drawable peekBgDrawable() {
+        return bgDrawable;
+    }
+
+    /**
+     * Creates the bitmaps of this icon if they do not exist yet, so that they
+     * are not created on the thread that first draws it. This can be called
+     * from any thread.
+     *
+     * @return the current icon, for method chaining
+     */
+    public AdaptiveIcon prepare() {
+        getFgBitmap();
+        getBgBitmap();
+        return this;
+    }
+
+    /**
+     * @return the application that this icon was loaded for, or null if it was not created by a Loader
+     */
+    @Nullable
+    public ResolveInfo getInfo() {
+        return info;
+    }
+
+    /**
+     * @return the amount of bytes used by the bitmaps of this icon
+     */
+    public long getByteCount() {
+        Bitmap fgBitmap = this.fgBitmap, bgBitmap = this.bgBitmap;
+        return (fgBitmap != null ? fgBitmap.getByteCount() : 0) + (bgBitmap != null ? bgBitmap.getByteCount() : 0);
+    }
+
+    /**
+     * Releases the bitmaps of this icon if they can be recreated when they are
+     * next requested - either from the icon's drawables, or by reloading it
+     * with the governor's loader.
+     *
+     * @param governor the governor to reload the icon with
+     * @return whether the bitmaps were released
+     */
+    synchronized boolean evict(IconMemoryGovernor governor) {
+        if (fgBitmap == null && bgBitmap == null)
+            return false;
+
+        if (fgDrawable == null) {
+            if (info == null || !governor.canReload())
+                return false;
+
+            evictedBy = governor;
+        }
+
+        releaseBitmap(fgBitmap);
+        releaseBitmap(bgBitmap);
+        fgBitmap = null;
+        bgBitmap = null;
+        return true;
+    }
+
+    /**
+     * Sets the interner to share the bitmaps of this icon with, interning
+     * any bitmaps that the icon already holds.
+     */
+    synchronized void setInterner(@Nullable LayerInterner interner) {
+        if (this.interner != null || interner == null)
+            return;
+
+        this.interner = interner;
+        if (fgBitmap != null)
+            fgBitmap = intern(fgBitmap, fgDrawable);
+        if (bgBitmap != null)
+            bgBitmap = intern(bgBitmap, bgDrawable);
+    }
+
+    /**
+     * Interns a bitmap created from one of the drawables of this icon. If it
+     * is the drawable's own bitmap, the interner must never recycle it, since
+     * the drawable may be drawn again after this icon has been evicted.
+     */
+    private Bitmap intern(Bitmap bitmap, @Nullable Drawable drawable) {
+        LayerInterner interner = this.interner;
+        if (interner == null)
+            return bitmap;
+
+        boolean isOwned = !(drawable instanceof BitmapDrawable) || ((BitmapDrawable) drawable).getBitmap() != bitmap;
+        return interner.intern(bitmap, isOwned);
+    }
+
+    /**
+     * Releases a bitmap created from a drawable of this icon.
+     *
+     * @return whether the bitmap can be recycled
+     */
+    private boolean releaseBitmap(@Nullable Bitmap bitmap) {
+        LayerInterner interner = this.interner;
+        return interner == null || interner.release(bitmap);
+    }
+
+    /**
+     * Starts reloading the bitmaps of an evicted icon on a background thread,
+     * unless they are already being reloaded. Until then, the icon has no
+     * bitmaps, and views display a placeholder in its shape. Must be called
+     * while holding the lock on this icon.
+     */
+    private void requestReload() {
+        if (!isReloading) {
+            isReloading = true;
+            evictedBy.reload(this, info);
+        }
+    }
+
+    /**
+     * Takes the bitmaps of the icon that this icon was reloaded as. If it could
+     * not be reloaded, or was reloaded as a different kind of icon (such as
+     * its legacy icon, which is drawn at a different scale), the icon stays
+     * evicted, and is reloaded again the next time its bitmaps are requested.
+     *
+     * @param icon the reloaded icon, or null if it could not be loaded
+     * @return whether the icon has its bitmaps again
+     */
+    synchronized boolean onReloaded(@Nullable AdaptiveIcon icon) {
+        isReloading = false;
+        if (icon == null)
+            return false;
+
+        if (isRecycled || evictedBy == null || icon.scale != scale) {
+            icon.recycle();
+            return false;
+        }
+
+        evictedBy = null;
+        fgBitmap = icon.fgBitmap;
+        bgBitmap = icon.bgBitmap;
+        return true;
+    }
+
+    /**
+     * @return whether the bitmaps of this icon are being reloaded
+     */
+    synchronized boolean isReloading() {
+        return isReloading;
+    }
+
+    /**
+     * Marks the icon as being used, for example by a view that displays it,
+     * so that recycle() does not release its bitmaps while they are still drawn.
+     * Each call must be matched by a call to release().
+     *
+     * @return the current icon, for method chaining
+     */
+    public synchronized AdaptiveIcon acquire() {
+        references++;
+        return this;
+    }
+
+    /**
+     * Marks the icon as no longer being used by the caller of acquire(). If
+     * the icon has been recycled and this was the last reference, its bitmaps
+     * are recycled now.
      */
-    public void recycle() {
-        fgBitmap.recycle();
-        bgBitmap.recycle();
+    public synchronized void release() {
+        if (references > 0 && --references == 0 && isRecycled)
+            recycleBitmaps();
+    }
+
+    /**
+     * Recycles the bitmaps used in this icon, or, if it has been acquired,
+     * once it has been released by everything that acquired it.
+     */
+    public synchronized void recycle() {
+        isRecycled = true;
+        if (references == 0)
+            recycleBitmaps();
+    }
+
+    /**
+     * @return whether recycle() has been called on this icon
+     */
+    public synchronized boolean isRecycled() {
+        return isRecycled;
+    }
+
+    private void recycleBitmaps() {
+        if (fgBitmap != null && releaseBitmap(fgBitmap))
+            fgBitmap.recycle();
+        if (bgBitmap != null && releaseBitmap(bgBitmap))
+            bgBitmap.recycle();
+
         fgBitmap = null;
         bgBitmap = null;
     }
 
-    public static class Loader {
+    public static class Loader {
+
+        // the same values as RecyclerView.SCROLL_STATE_IDLE, SCROLL_STATE_DRAGGING and SCROLL_STATE_SETTLING
+        public static final int SCROLL_STATE_IDLE = 0;
+        public static final int SCROLL_STATE_DRAGGING = 1;
+        public static final int SCROLL_STATE_FLINGING = 2;
+
+        private static final int TIER_NONE = -1;
+        private static final int TIER_ADAPTIVE = 0;
+
+        private static final int DEADLINE_RUNNING = 0;
+        private static final int DEADLINE_DONE = 1;
+        private static final int DEADLINE_EXPIRED = 2;
+
+        // the layers of each adaptive icon, by package name and icon resource, shared by every loader
+        private static final Map<String, LayerResources> LAYER_RESOURCES = new HashMap<>();
+
+        private Context context;
+        private Fallback fallback;
+        private IconSnapshot snapshot;
+        private int size;
+        @Nullable
+        private LoadStats stats;
+        @Nullable
+        private LayerInterner interner;
+        private long deadline;
+        @Nullable
+        private AsyncCallback upgradeCallback;
+        // shared by every loader; a load that misses its deadline keeps running here to upgrade the icon
+        private static ExecutorService deadlineExecutor;
+        // shared by every loader; runs the deferred loads, most recently requested first
+        private static ThreadPoolExecutor deferredExecutor;
+        private static final AtomicLong DEFERRED_SEQUENCE = new AtomicLong();
+
+        // the loads requested while flinging, in the order that they were requested; guarded by itself
+        private final List<DeferredLoad> deferredLoads = new ArrayList<>();
+        // the deferred loads that have been passed to the executor and not started yet; guarded by deferredLoads
+        private final Set<DeferredLoad> queuedLoads = new HashSet<>();
+        private int scrollState = SCROLL_STATE_IDLE;
+
+        // the version and the tier that succeeded for each package name
+        private final Map<String, long[]> tiers = new HashMap<>();
+
+        /**
+         * @param context the active context for the loader to use
+         * @return the loader, for method chaining
+         */
+        public Loader with(Context context) {
+            this.context = context;
+            return this;
+        }
+
+        /**
+         * Sets a fallback for the loader to use if an adaptive icon
+         * cannot be obtained.
+         *
+         * @param fallback the fallback to use
+         * @return the loader, for method chaining
+         */
+        public Loader fallback(Fallback fallback) {
+            this.fallback = fallback;
+            synchronized (tiers) {
+                tiers.clear();
+            }
+            return this;
+        }
+
+        /**
+         * Sets the size that the loaded icons will be displayed at, so that their
+         * layers are loaded from the smallest density that is large enough for it
+         * instead of the density of the device. Without a size, layers may be
+         * several times larger than they are displayed.
+         *
+         * @param size the width and height of the displayed icons, in pixels, or 0 to use the device density
+         * @return the loader, for method chaining
+         */
+        public Loader size(int size) {
+            this.size = size;
+            return this;
+        }
+
+        /**
+         * Sets a time limit for loading each icon. If an icon takes longer than
+         * this, load returns the application's legacy icon instead (using the
+         * LegacyIconFallback in the fallbacks, if there is one), while the full load
+         * continues in the background. Once it finishes, the full icon is passed to
+         * the upgrade callback on the main thread, so that it can replace the
+         * legacy icon. The time is counted from when the load starts running,
+         * not including any time spent waiting for a thread.
+         *
+         * @param millis          the maximum time to spend loading an icon, in milliseconds, or 0 for no limit
+         * @param upgradeCallback the callback to pass icons that finished loading after the deadline to, or null to discard them
+         * @return the loader, for method chaining
+         */
+        public Loader deadline(long millis, @Nullable AsyncCallback upgradeCallback) {
+            this.deadline = millis;
+            this.upgradeCallback = upgradeCallback;
+            return this;
+        }
+
+        /**
+         * Sets a LoadStats to record the time spent loading each icon, and in
+         * each stage of loading it, in.
+         *
+         * @param stats the stats to record timings in, or null to stop recording them
+         * @return the loader, for method chaining
+         */
+        public Loader stats(@Nullable LoadStats stats) {
+            this.stats = stats;
+            return this;
+        }
+
+        /**
+         * Sets a LayerInterner to share the bitmaps of the loaded icons through,
+         * so that icons with identical layers (such as plain backgrounds) hold a
+         * single copy of them.
+         *
+         * @param interner the interner to use, or null to give each icon its own bitmaps
+         * @return the loader, for method chaining
+         */
+        public Loader intern(@Nullable LayerInterner interner) {
+            this.interner = interner;
+            return this;
+        }
+
+        /**
+         * Sets a snapshot for the loader to obtain icons from before loading
+         * them. Icons are only taken from the snapshot if it was written for the
+         * installed version of their package.
+         *
+         * @param snapshot the snapshot to use, or null to always load icons
+         * @return the loader, for method chaining
+         */
+        public Loader snapshot(@Nullable IconSnapshot snapshot) {
+            this.snapshot = snapshot;
+            return this;
+        }
+
+        /**
+         * Informs the loader of the scroll state of the list that its icons are
+         * displayed in. While the list is flinging, loadAsync only passes icons
+         * that are in the snapshot to its callback, and loadProgressive only
+         * passes the legacy icon to its preview callback - the full loads are
+         * deferred until the list stops flinging, and then run with the most
+         * recently requested icons (those closest to where the list settled) first,
+         * ahead of any loads that are still waiting from an earlier fling. Deferred
+         * loads that are no longer needed can be dropped with cancel(ResolveInfo).
+         * This must be called on the main thread.
+         *
+         * @param state SCROLL_STATE_IDLE, SCROLL_STATE_DRAGGING or SCROLL_STATE_FLINGING
+         */
+        public void onScrollStateChanged(int state) {
+            List<DeferredLoad> loads;
+            synchronized (deferredLoads) {
+                scrollState = state;
+                if (state == SCROLL_STATE_FLINGING || deferredLoads.isEmpty())
+                    return;
+
+                loads = new ArrayList<>(deferredLoads);
+                deferredLoads.clear();
+                queuedLoads.addAll(loads);
+            }
+
+            // the executor orders them, so the most recent ones run first
+            ThreadPoolExecutor executor = getDeferredExecutor();
+            for (DeferredLoad load : loads) {
+                executor.execute(load);
+            }
+        }
+
+        /**
+         * Cancels the deferred loads of an application's icon that have not
+         * started yet, so that their callbacks are never called - for example,
+         * once the item that it was requested for has been scrolled away or
+         * bound to another application. Loads that have already started still
+         * pass their icon to the callback.
+         *
+         * @param info the app that the icon was requested for
+         */
+        public void cancel(ResolveInfo info) {
+            cancel(PackageUtils.getComponent(info.activityInfo));
+        }
+
+        /**
+         * Cancels all of the deferred loads of this loader that have not
+         * started yet, for example when the list that they were requested for
+         * is destroyed.
+         */
+        public void cancelAll() {
+            cancel(null);
+        }
+
+        /**
+         * @param component the component to cancel the loads of, or null to cancel every load
+         */
+        private void cancel(@Nullable String component) {
+            List<DeferredLoad> cancelled = new ArrayList<>();
+            synchronized (deferredLoads) {
+                Iterator<DeferredLoad> iterator = deferredLoads.iterator();
+                while (iterator.hasNext()) {
+                    if (iterator.next().isFor(component))
+                        iterator.remove();
+                }
+
+                iterator = queuedLoads.iterator();
+                while (iterator.hasNext()) {
+                    DeferredLoad load = iterator.next();
+                    if (load.isFor(component)) {
+                        iterator.remove();
+                        cancelled.add(load);
+                    }
+                }
+            }
+
+            if (!cancelled.isEmpty()) {
+                ThreadPoolExecutor executor = getDeferredExecutor();
+                for (DeferredLoad load : cancelled) {
+                    executor.remove(load);
+                }
+            }
+        }
+
+        /**
+         * Loads an adaptive icon.
+         *
+         * @param info the app to load the icon for
+         * @return the adaptive icon, or null if it cannot be obtained
+         */
+        @Nullable
+        public AdaptiveIcon load(ResolveInfo info) {
+            return load(info, deadline > 0);
+        }
+
+        /**
+         * Loads an icon again after its bitmaps have been released. This never
+         * applies the deadline, so that it cannot be replaced by the legacy icon,
+         * and never passes the icon to the upgrade callback.
+         *
+         * @param info the app to load the icon for
+         * @return the adaptive icon, or null if it cannot be obtained
+         */
+        @Nullable
+        AdaptiveIcon reload(ResolveInfo info) {
+            return load(info, false);
+        }
+
+        @Nullable
+        private AdaptiveIcon load(ResolveInfo info, boolean hasDeadline) {
+            LoadStats stats = this.stats;
+            long start = stats != null ? System.nanoTime() : 0;
+
+            AdaptiveIcon icon = hasDeadline ? loadWithDeadline(info, stats) : loadIcon(info, stats);
+            if (icon != null)
+                attach(icon, info);
+
+            if (stats != null)
+                stats.recordLoad(System.nanoTime() - start, icon != null);
+
+            return icon;
+        }
+
+        @Nullable
+        private AdaptiveIcon loadIcon(ResolveInfo info, @Nullable LoadStats stats) {
+            if (context == null)
+                throw new IllegalStateException("Loader.with(Context) must be called before loading an icon.");
+
+            String packageName = info.activityInfo.packageName;
+            long start = stats != null ? System.nanoTime() : 0;
+            long version = PackageUtils.getVersionCode(context.getPackageManager(), packageName);
+            if (stats != null)
+                start = record(stats, LoadStats.STAGE_VERSION, start, true);
+
+            if (snapshot != null) {
+                AdaptiveIcon icon = snapshot.get(PackageUtils.getComponent(info.activityInfo), version);
+                if (stats != null)
+                    start = record(stats, LoadStats.STAGE_SNAPSHOT, start, icon != null);
+                if (icon != null)
+                    return icon;
+            }
+
+            // start from the tier that worked last time, skipping the ones that are known to fail
+            int tier = getTier(packageName, version);
+            if (tier == TIER_NONE)
+                return null;
+
+            List<Fallback> fallbacks = getFallbackTiers();
+            for (; tier <= fallbacks.size(); tier++) {
+                AdaptiveIcon icon = tier == TIER_ADAPTIVE ? loadAdaptiveIcon(info, version) : fallbacks.get(tier - 1).loadSelf(context, info);
+                if (stats != null)
+                    start = record(stats, tier == TIER_ADAPTIVE ? LoadStats.STAGE_ADAPTIVE : fallbacks.get(tier - 1).getName(), start, icon != null);
+                if (icon != null) {
+                    setTier(packageName, version, tier);
+                    return icon;
+                }
+            }
+
+            setTier(packageName, version, TIER_NONE);
+            return null;
+        }
+
+        /**
+         * Loads an icon on the deadline executor, returning the legacy icon instead
+         * if it takes longer than the deadline.
+         */
+        @Nullable
+        private AdaptiveIcon loadWithDeadline(final ResolveInfo info, @Nullable final LoadStats stats) {
+            if (context == null)
+                throw new IllegalStateException("Loader.with(Context) must be called before loading an icon.");
+
+            final long start = System.nanoTime();
+            final AsyncCallback upgradeCallback = this.upgradeCallback;
+            // RUNNING until either the load finishes (DONE), or the deadline is missed (EXPIRED) first
+            final AtomicInteger state = new AtomicInteger(DEADLINE_RUNNING);
+            // when the load started running, or 0 while it is still waiting for a thread
+            final AtomicLong loadStart = new AtomicLong();
+            FutureTask<AdaptiveIcon> task = new FutureTask<AdaptiveIcon>(new Callable<AdaptiveIcon>() {
+                @Override
+                public AdaptiveIcon call() {
+                    loadStart.set(System.nanoTime());
+                    return loadIcon(info, stats);
+                }
+            }) {
+                @Override
+                protected void done() {
+                    if (state.compareAndSet(DEADLINE_RUNNING, DEADLINE_DONE) || isCancelled())
+                        return;
+
+                    final AdaptiveIcon icon;
+                    try {
+                        icon = get();
+                    } catch (Exception e) {
+                        return;
+                    }
+
+                    if (stats != null)
+                        stats.record(LoadStats.STAGE_UPGRADE, System.nanoTime() - start, icon != null);
+
+                    if (icon != null && upgradeCallback != null) {
+                        attach(icon, info);
+                        new Handler(Looper.getMainLooper()).post(new Runnable() {
+                            @Override
+                            public void run() {
+                                upgradeCallback.onResult(info, icon);
+                            }
+                        });
+                    }
+                }
+            };
+
+            getDeadlineExecutor().execute(task);
+            try {
+                // the deadline only starts once the load is running, so loads that wait for a thread
+                // of the shared pool are not replaced by their legacy icons just for waiting
+                long timeout = TimeUnit.MILLISECONDS.toNanos(deadline);
+                while (true) {
+                    try {
+                        return task.get(timeout, TimeUnit.NANOSECONDS);
+                    } catch (TimeoutException e) {
+                        long started = loadStart.get();
+                        timeout = started == 0 ? TimeUnit.MILLISECONDS.toNanos(deadline) : started + TimeUnit.MILLISECONDS.toNanos(deadline) - System.nanoTime();
+                        if (timeout <= 0)
+                            throw e;
+                    }
+                }
+            } catch (TimeoutException e) {
+                if (!state.compareAndSet(DEADLINE_RUNNING, DEADLINE_EXPIRED))
+                    return getFinishedIcon(task);
+
+                AdaptiveIcon icon = getDeadlineFallback().loadSelf(context, info);
+                if (stats != null)
+                    stats.record(LoadStats.STAGE_DEADLINE, System.nanoTime() - start, icon != null);
+
+                return icon;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException)
+                    throw (RuntimeException) e.getCause();
+                else throw new RuntimeException(e.getCause());
+            }
+        }
+
+        /**
+         * Associates a loaded icon with the app that it was loaded for, and the loader's interner.
+         */
+        private void attach(AdaptiveIcon icon, ResolveInfo info) {
+            icon.info = info;
+            icon.setInterner(interner);
+        }
+
+        /**
+         * Obtains the result of a load that finished just as its deadline was missed.
+         */
+        @Nullable
+        private static AdaptiveIcon getFinishedIcon(FutureTask<AdaptiveIcon> task) {
+            try {
+                return task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException)
+                    throw (RuntimeException) e.getCause();
+                else throw new RuntimeException(e.getCause());
+            }
+        }
+
+        /**
+         * @return the LegacyIconFallback in the fallbacks, or a default one if there isn't one
+         */
+        private Fallback getDeadlineFallback() {
+            for (Fallback tier = fallback; tier != null; tier = tier.getFallback()) {
+                if (tier instanceof LegacyIconFallback)
+                    return tier;
+            }
+
+            return new LegacyIconFallback();
+        }
+
+        /**
+         * Defers a load until the list stops flinging.
+         *
+         * @return the deferred load, or null if the list is not flinging, and the load should be run now
+         */
+        @Nullable
+        private DeferredLoad deferLoad(ResolveInfo info, Runnable load) {
+            synchronized (deferredLoads) {
+                if (scrollState != SCROLL_STATE_FLINGING)
+                    return null;
+
+                DeferredLoad deferred = new DeferredLoad(PackageUtils.getComponent(info.activityInfo), load, false);
+                deferredLoads.add(deferred);
+                return deferred;
+            }
+        }
+
+        /**
+         * Passes a load to the deferred executor straight away, rather than
+         * waiting for the list to stop flinging.
+         */
+        private void queueLoad(DeferredLoad load) {
+            synchronized (deferredLoads) {
+                queuedLoads.add(load);
+            }
+
+            getDeferredExecutor().execute(load);
+        }
+
+        /**
+         * Takes a deferred load back before it has started.
+         *
+         * @return false if it has already started, or has been cancelled
+         */
+        private boolean takeDeferredLoad(DeferredLoad load) {
+            synchronized (deferredLoads) {
+                if (deferredLoads.remove(load))
+                    return true;
+                if (!queuedLoads.remove(load))
+                    return false;
+            }
+
+            getDeferredExecutor().remove(load);
+            return true;
+        }
+
+        /**
+         * A load that was deferred while flinging. Deferred loads run in the
+         * opposite order to the one that they were requested in, across every
+         * loader, as the most recent requests are for the icons that are closest
+         * to where the list settled. Urgent loads, which only read the snapshot,
+         * run before all of them.
+         */
+        private class DeferredLoad implements Runnable, Comparable<DeferredLoad> {
+
+            private final String component;
+            private final Runnable load;
+            private final boolean isUrgent;
+            private final long sequence = DEFERRED_SEQUENCE.incrementAndGet();
+
+            private DeferredLoad(String component, Runnable load, boolean isUrgent) {
+                this.component = component;
+                this.load = load;
+                this.isUrgent = isUrgent;
+            }
+
+            private boolean isFor(@Nullable String component) {
+                return component == null || component.equals(this.component);
+            }
+
+            @Override
+            public void run() {
+                synchronized (deferredLoads) {
+                    // it was cancelled after it had been taken from the queue
+                    if (!queuedLoads.remove(this))
+                        return;
+                }
+
+                load.run();
+            }
+
+            @Override
+            public int compareTo(DeferredLoad other) {
+                if (isUrgent != other.isUrgent)
+                    return isUrgent ? -1 : 1;
+
+                return sequence > other.sequence ? -1 : (sequence < other.sequence ? 1 : 0);
+            }
+        }
+
+        /**
+         * Obtains an icon from the snapshot, without loading it.
+         */
+        @Nullable
+        private AdaptiveIcon loadCached(ResolveInfo info) {
+            IconSnapshot snapshot = this.snapshot;
+            if (snapshot == null || context == null)
+                return null;
+
+            long version = PackageUtils.getVersionCode(context.getPackageManager(), info.activityInfo.packageName);
+            AdaptiveIcon icon = snapshot.get(PackageUtils.getComponent(info.activityInfo), version);
+            if (icon != null)
+                attach(icon, info);
+
+            return icon;
+        }
+
+        private static synchronized ThreadPoolExecutor getDeferredExecutor() {
+            // a fixed amount of threads, so that the queued loads run in the order of their priority
+            if (deferredExecutor == null)
+                deferredExecutor = newDaemonExecutor("AdaptiveIcon-deferred", Math.max(1, Runtime.getRuntime().availableProcessors() - 1), new PriorityBlockingQueue<Runnable>());
+
+            return deferredExecutor;
+        }
+
+        private static synchronized ExecutorService getDeadlineExecutor() {
+            // bounded, so that a burst of slow loads queues up instead of starting a thread for each one
+            if (deadlineExecutor == null)
+                deadlineExecutor = newDaemonExecutor("AdaptiveIcon-deadline", Math.max(2, Runtime.getRuntime().availableProcessors()), new LinkedBlockingQueue<Runnable>());
+
+            return deadlineExecutor;
+        }
+
+        /**
+         * Creates a fixed size pool of daemon threads, which do not keep the
+         * process alive, and which exit once they have been idle for a while.
+         */
+        private static ThreadPoolExecutor newDaemonExecutor(final String name, int threads, BlockingQueue<Runnable> queue) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 10, TimeUnit.SECONDS, queue, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+            executor.allowCoreThreadTimeOut(true);
+            return executor;
+        }
+
+        /**
+         * Records the time since the start of a stage.
+         *
+         * @return the time that the next stage starts at
+         */
+        private static long record(LoadStats stats, String stage, long start, boolean isSuccess) {
+            long end = System.nanoTime();
+            stats.record(stage, end - start, isSuccess);
+            return end;
+        }
+
+        /**
+         * Loads the adaptive icon of an application, without using any fallbacks.
+         */
+        @Nullable
+        private AdaptiveIcon loadAdaptiveIcon(ResolveInfo info, long version) {
+            PackageManager packageManager = context.getPackageManager();
+            Drawable background = null, foreground = null;
+
+            // the layers are drawn at (2 - scale) times the size of the icon
+            int layerSize = size > 0 ? (int) Math.ceil(1.5 * size) : 0;
+
+            // the platform already resolves adaptive icons on Oreo, so the manifest doesn't need to be parsed
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O)
+                return loadNativeAdaptiveIcon(info, layerSize);
+
+            Resources resources = null;
+            try {
+                resources = ResourceUtils.getResourcesForSdk(packageManager, info.activityInfo.applicationInfo, Build.VERSION_CODES.O);
+                Resources.Theme theme = resources.newTheme();
+                LayerResources layers = getLayerResources(info, version, resources);
+
+                if (layers.background == LayerResources.MISSING)
+                    background = new ColorDrawable(Color.WHITE);
+                else if (layers.background != 0)
+                    background = ResourceUtils.getDrawableForSize(resources, layers.background, theme, layerSize, LAYER_SIZE_DP);
+
+                if (layers.foreground != LayerResources.MISSING)
+                    foreground = ResourceUtils.getDrawableForSize(resources, layers.foreground, theme, layerSize, LAYER_SIZE_DP);
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                ResourceUtils.releaseResourcesForSdk(resources);
+            }
+
+            if (foreground != null && background != null)
+                return new AdaptiveIcon(foreground, background, 0.5, layerSize);
+            else return null;
+        }
+
+        /**
+         * Finds the resources of the layers of an application's adaptive icon,
+         * parsing its manifest and icon XML only the first time that each version
+         * of it is loaded.
+         */
+        private static LayerResources getLayerResources(ResolveInfo info, long version, Resources resources) throws Exception {
+            String key = info.activityInfo.packageName + "/" + info.getIconResource();
+            synchronized (LAYER_RESOURCES) {
+                LayerResources layers = LAYER_RESOURCES.get(key);
+                if (layers != null && layers.version == version)
+                    return layers;
+            }
+
+            AssetManager assetManager = resources.getAssets();
+
+            XmlResourceParser manifestParser = null;
+            String iconName = null;
+            try {
+                manifestParser = assetManager.openXmlResourceParser("AndroidManifest.xml");
+            } catch (Exception e) {
+            }
+
+            if (manifestParser != null) {
+                int event;
+                while ((event = manifestParser.getEventType()) != XmlPullParser.END_DOCUMENT) {
+                    if (event == XmlPullParser.START_TAG && manifestParser.getName().equals("application")) {
+                        iconName = resources.getResourceName(manifestParser.getAttributeResourceValue(ANDROID_SCHEMA, "icon", 0));
+                        if (iconName.contains("/"))
+                            iconName = iconName.split("/")[1];
+                        break;
+                    }
+
+                    manifestParser.next();
+                }
+
+                manifestParser.close();
+            }
+
+            XmlResourceParser parser = null;
+            for (int dir = 0; dir < IC_DIRS.length && parser == null; dir++) {
+                for (int config = 0; config < IC_CONFIGS.length && parser == null; config++) {
+                    for (String name : iconName != null && !iconName.equals("ic_launcher") ? new String[]{iconName, "ic_launcher"} : new String[]{"ic_launcher"}) {
+                        try {
+                            parser = assetManager.openXmlResourceParser("res/" + IC_DIRS[dir] + IC_CONFIGS[config] + "/" + name + ".xml");
+                        } catch (Exception e) {
+                            continue;
+                        }
+
+                        if (parser != null)
+                            break;
+                    }
+                }
+            }
+
+            int backgroundRes = -1, foregroundRes = -1;
+            if (parser != null) {
+                int event;
+                while ((event = parser.getEventType()) != XmlPullParser.END_DOCUMENT) {
+                    if (event == XmlPullParser.START_TAG) {
+                        switch (parser.getName()) {
+                            case "background":
+                                for (int dir = 0; dir < IC_DIRS.length; dir++) {
+
+                                }
+                                try {
+                                    backgroundRes = parser.getAttributeResourceValue("http://schemas.android.com/apk/res/android", "drawable", 0);
+                                } catch (Exception e) {
+                                    try {
+                                        backgroundRes = parser.getAttributeResourceValue("http://schemas.android.com/apk/res/android", "mipmap", 0);
+                                    } catch (Exception e1) {
+                                    }
+                                }
+                                break;
+                            case "foreground":
+                                try {
+                                    foregroundRes = parser.getAttributeResourceValue("http://schemas.android.com/apk/res/android", "drawable", 0);
+                                } catch (Exception e) {
+                                    try {
+                                        foregroundRes = parser.getAttributeResourceValue("http://schemas.android.com/apk/res/android", "mipmap", 0);
+                                    } catch (Exception e1) {
+                                    }
+                                }
+                                break;
+                        }
+                    }
+                    parser.next();
+                }
+
+                parser.close();
+            }
+
+            // the names that the layers are looked up by if the icon XML does not refer to them
+            LayerResources layers = new LayerResources(version,
+                    backgroundRes == 0 ? 0 : resolveLayer(resources, backgroundRes, "ic_launcher_background", info.activityInfo.packageName),
+                    resolveLayer(resources, foregroundRes, "ic_launcher_foreground", info.activityInfo.packageName));
+
+            synchronized (LAYER_RESOURCES) {
+                LAYER_RESOURCES.put(key, layers);
+            }
+
+            return layers;
+        }
+
+        /**
+         * @return the given resource if it exists, or else the first of the mipmap or drawable with the given name, or MISSING
+         */
+        private static int resolveLayer(Resources resources, int res, String name, String packageName) {
+            if (res != 0 && res != -1) {
+                try {
+                    resources.getResourceName(res);
+                    return res;
+                } catch (Resources.NotFoundException e) {
+                }
+            }
+
+            for (String dir : IC_DIRS) {
+                int identifier = resources.getIdentifier(name, dir, packageName);
+                if (identifier != 0)
+                    return identifier;
+            }
+
+            return LayerResources.MISSING;
+        }
+
+        /**
+         * Obtains the layers of the AdaptiveIconDrawable that the platform loads
+         * for an activity.
+         *
+         * @return the adaptive icon, or null if the activity does not have one
+         */
+        @Nullable
+        @RequiresApi(Build.VERSION_CODES.O)
+        private AdaptiveIcon loadNativeAdaptiveIcon(ResolveInfo info, int layerSize) {
+            PackageManager packageManager = context.getPackageManager();
+            Drawable drawable;
+
+            try {
+                int iconRes = info.getIconResource();
+                if (iconRes != 0) {
+                    Resources resources = packageManager.getResourcesForApplication(info.activityInfo.applicationInfo);
+                    drawable = ResourceUtils.getDrawableForSize(resources, iconRes, null, layerSize, LAYER_SIZE_DP);
+                } else drawable = info.loadIcon(packageManager);
+            } catch (Exception e) {
+                if (BuildConfig.DEBUG)
+                    Log.e("AdaptiveIcon", "Loading the native icon threw \n"
+                            + e.getClass().getName() + ": " + e.getMessage());
+                return null;
+            }
 
-        private Context context;
-        private Fallback fallback;
+            if (drawable instanceof AdaptiveIconDrawable) {
+                AdaptiveIconDrawable adaptiveIcon = (AdaptiveIconDrawable) drawable;
+                if (adaptiveIcon.getForeground() != null && adaptiveIcon.getBackground() != null)
+                    return new AdaptiveIcon(adaptiveIcon.getForeground(), adaptiveIcon.getBackground(), 0.5, layerSize);
+            }
+
+            return null;
+        }
 
         /**
-         * @param context the active context for the loader to use
-         * @return the loader, for method chaining
+         * Lists the fallbacks that can be tried individually, in order. A fallback
+         * that does not support this is the last tier, and includes its own fallbacks.
          */
-        public Loader with(Context context) {
-            this.context = context;
-            return this;
+        private List<Fallback> getFallbackTiers() {
+            List<Fallback> fallbacks = new ArrayList<>();
+            for (Fallback tier = fallback; tier != null; tier = tier.getFallback()) {
+                fallbacks.add(tier);
+                if (!tier.isSelfContained())
+                    break;
+            }
+
+            return fallbacks;
+        }
+
+        private int getTier(String packageName, long version) {
+            synchronized (tiers) {
+                long[] tier = tiers.get(packageName);
+                return tier != null && tier[0] == version ? (int) tier[1] : TIER_ADAPTIVE;
+            }
+        }
+
+        private void setTier(String packageName, long version, int tier) {
+            synchronized (tiers) {
+                tiers.put(packageName, new long[]{version, tier});
+            }
         }
 
         /**
-         * Sets a fallback for the loader to use if an adaptive icon
-         * cannot be obtained.
+         * Crappy async implementation. While the list that the icons are
+         * displayed in is flinging, no thread is started: the load is deferred
+         * until it stops (see onScrollStateChanged), unless it is cancelled first
+         * (see cancel(ResolveInfo)), and only the snapshot is read in the meantime,
+         * on the executor that runs the deferred loads.
          *
-         * @param fallback the fallback to use
-         * @return the loader, for method chaining
+         * @param info     the app to load the icon for
+         * @param callback an interface to pass the adaptive icon to, or null if it cannot be obtained
+         * @return the started thread, or null if the load was deferred
          */
-        public Loader fallback(Fallback fallback) {
-            this.fallback = fallback;
-            return this;
+        @Nullable
+        public Thread loadAsync(final ResolveInfo info, final AsyncCallback callback) {
+            final Handler handler = new Handler(Looper.getMainLooper());
+            final Runnable load = new Runnable() {
+                @Override
+                public void run() {
+                    final AdaptiveIcon icon = load(info);
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onResult(info, icon);
+                        }
+                    });
+                }
+            };
+
+            final DeferredLoad deferred = deferLoad(info, load);
+            if (deferred != null) {
+                if (snapshot != null) {
+                    // an icon in the snapshot replaces the deferred load, unless that has already started
+                    queueLoad(new DeferredLoad(deferred.component, new Runnable() {
+                        @Override
+                        public void run() {
+                            final AdaptiveIcon icon = loadCached(info);
+                            if (icon != null && takeDeferredLoad(deferred)) {
+                                handler.post(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        callback.onResult(info, icon);
+                                    }
+                                });
+                            }
+                        }
+                    }, true));
+                }
+
+                return null;
+            }
+
+            Thread thread = new Thread(load);
+            thread.start();
+            return thread;
         }
 
         /**
-         * Loads an adaptive icon.
+         * Loads an icon in two phases: the application's legacy icon is loaded
+         * first (using the LegacyIconFallback in the fallbacks, if there is one)
+         * and passed to the preview callback, then the full icon is loaded and
+         * passed to the callback. Both callbacks are called on the main thread.
+         * Passing the full icon to AdaptiveIconView.setIcon(icon, true) cross-fades
+         * it over the preview. The deadline is not applied to progressive loads,
+         * and while the list that the icons are displayed in is flinging, the full
+         * icon is only loaded once it stops (see onScrollStateChanged).
          *
-         * @param info the app to load the icon for
-         * @return the adaptive icon, or null if it cannot be obtained
+         * @param info            the app to load the icon for
+         * @param previewCallback an interface to pass the legacy icon to, if it can be obtained
+         * @param callback        an interface to pass the adaptive icon to, or null if it cannot be obtained
+         * @return the started thread
          */
-        @Nullable
-        public AdaptiveIcon load(ResolveInfo info) {
+        public Thread loadProgressive(final ResolveInfo info, final AsyncCallback previewCallback, final AsyncCallback callback) {
             if (context == null)
                 throw new IllegalStateException("Loader.with(Context) must be called before loading an icon.");
 
-            PackageManager packageManager = context.getPackageManager();
-            Drawable background = null, foreground = null;
+            final Handler handler = new Handler(Looper.getMainLooper());
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    LoadStats stats = Loader.this.stats;
+                    long start = stats != null ? System.nanoTime() : 0;
+                    final AdaptiveIcon preview = getDeadlineFallback().loadSelf(context, info);
+                    if (stats != null)
+                        record(stats, LoadStats.STAGE_PREVIEW, start, preview != null);
+
+                    if (preview != null) {
+                        attach(preview, info);
+                        handler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                previewCallback.onResult(info, preview);
+                            }
+                        });
+                    }
 
-            try {
-                Resources resources = packageManager.getResourcesForApplication(info.activityInfo.packageName);
-                Resources.Theme theme = resources.newTheme();
-                ResourceUtils.setFakeConfig(resources, Build.VERSION_CODES.O);
-                AssetManager assetManager = resources.getAssets();
+                    Runnable load = new Runnable() {
+                        @Override
+                        public void run() {
+                            final AdaptiveIcon icon = load(info, false);
+                            handler.post(new Runnable() {
+                                @Override
+                                public void run() {
+                                    callback.onResult(info, icon);
+                                }
+                            });
+                        }
+                    };
+
+                    if (deferLoad(info, load) == null)
+                        load.run();
+                }
+            };
+            thread.start();
+            return thread;
+        }
+
+        /**
+         * The resources of the layers of an adaptive icon, as resolved from the
+         * icon XML of a specific version of an application.
+         */
+        private static class LayerResources {
+
+            // no resource could be found for the layer
+            private static final int MISSING = -1;
+
+            private final long version;
+            private final int background, foreground;
+
+            private LayerResources(long version, int background, int foreground) {
+                this.version = version;
+                this.background = background;
+                this.foreground = foreground;
+            }
+        }
+
+        public static class IconPackFallback extends Fallback {
+
+            private static final String COMPONENT_PREFIX = "ComponentInfo{";
+            private static final Map<String, IconPackIndex> INDEXES = new HashMap<>();
+
+            private String packageName;
+            private Drawable background;
+            @Nullable
+            private Boolean shouldClip;
+            @Nullable
+            private Integer scale;
+            private boolean removeShadow = false;
+
+            /**
+             * @param packageName the package name of the icon pack to use
+             */
+            public IconPackFallback(String packageName) {
+                this.packageName = packageName;
+            }
+
+            /**
+             * @param backgroundColor the color of the background, as a color int
+             * @return the current IconPackFallback, for method chaining
+             */
+            public IconPackFallback withBackgroundColor(@ColorInt int backgroundColor) {
+                background = new ColorDrawable(backgroundColor);
+                return this;
+            }
+
+            /**
+             * @param background the drawable to use as the background, or null to find a color automatically
+             * @return the current IconPackFallback, for method chaining
+             */
+            public IconPackFallback withBackground(@Nullable Drawable background) {
+                this.background = background;
+                return this;
+            }
+
+            /**
+             * @param shouldClip whether icon pack icons should be clipped by the adaptive icon shape, or null to determine this automatically
+             * @return the current IconPackFallback, for method chaining
+             */
+            public IconPackFallback shouldClip(@Nullable Boolean shouldClip) {
+                this.shouldClip = shouldClip;
+                return this;
+            }
+
+            /**
+             * @param scale the scale of the icon pack icon, preferably between 1 and 2, but other values greater than 0 work also
+             * @return the current IconPackFallback, for method chaining
+             */
+            public IconPackFallback withScale(@Nullable Integer scale) {
+                this.scale = scale;
+                return this;
+            }
+
+            /**
+             * @param removeShadow whether the shadow (or any other transparent parts) should be removed from the icon
+             * @return the current IconPackFallback, for method chaining
+             */
+            public IconPackFallback shouldRemoveShadow(boolean removeShadow) {
+                this.removeShadow = removeShadow;
+                return this;
+            }
+
+            @Nullable
+            @Override
+            public AdaptiveIcon load(Context context, ResolveInfo info) {
+                AdaptiveIcon icon = loadSelf(context, info);
+                return icon != null ? icon : loadFallback(context, info);
+            }
+
+            @Override
+            boolean isSelfContained() {
+                return true;
+            }
 
-                XmlResourceParser manifestParser = null;
-                String iconName = null;
+            @Nullable
+            @Override
+            AdaptiveIcon loadSelf(Context context, ResolveInfo info) {
+                Drawable foreground = null;
                 try {
-                    manifestParser = assetManager.openXmlResourceParser("AndroidManifest.xml");
+                    IconPackIndex index = getIndex(context);
+                    Integer res = index.drawables.get(PackageUtils.getComponent(info.activityInfo));
+                    if (res != null)
+                        foreground = ResourcesCompat.getDrawable(index.resources, res, null);
                 } catch (Exception e) {
+                    if (BuildConfig.DEBUG)
+                        Log.e("AdaptiveIcon", "IconPackFallback threw \n"
+                                + e.getClass().getName() + ": " + e.getMessage());
                 }
 
-                if (manifestParser != null) {
-                    int event;
-                    while ((event = manifestParser.getEventType()) != XmlPullParser.END_DOCUMENT) {
-                        if (event == XmlPullParser.START_TAG && manifestParser.getName().equals("application")) {
-                            iconName = resources.getResourceName(manifestParser.getAttributeResourceValue(ANDROID_SCHEMA, "icon", 0));
-                            if (iconName.contains("/"))
-                                iconName = iconName.split("/")[1];
-                            break;
-                        }
+                if (foreground == null)
+                    return null;
+
+                Bitmap fgBitmap = ImageUtils.drawableToBitmap(foreground);
+                if (removeShadow)
+                    fgBitmap = ImageUtils.removeShadow(fgBitmap);
+
+                boolean hasTransparency = ImageUtils.hasTransparency(fgBitmap);
+                return new AdaptiveIcon(
+                        fgBitmap,
+                        (shouldClip != null ? !shouldClip : hasTransparency) ? null : ImageUtils.drawableToBitmap(background != null ? background : new ColorDrawable(ImageUtils.getDominantColor(fgBitmap))),
+                        scale != null ? scale : 1
+                );
+            }
 
-                        manifestParser.next();
+            /**
+             * Obtains the index of the icon pack, parsing its appfilter only if it has
+             * not been parsed for the installed version of the pack in this process.
+             * The version is checked on every call, so an updated pack is parsed again.
+             */
+            private IconPackIndex getIndex(Context context) throws PackageManager.NameNotFoundException {
+                PackageManager packageManager = context.getPackageManager();
+                long version = PackageUtils.getVersionCode(packageManager, packageName);
+
+                synchronized (INDEXES) {
+                    IconPackIndex index = INDEXES.get(packageName);
+                    if (index == null || index.version != version) {
+                        Resources resources = packageManager.getResourcesForApplication(packageName);
+                        index = new IconPackIndex(version, resources, parseAppFilter(resources));
+                        INDEXES.put(packageName, index);
                     }
 
-                    manifestParser.close();
+                    return index;
                 }
+            }
 
-                XmlResourceParser parser = null;
-                for (int dir = 0; dir < IC_DIRS.length && parser == null; dir++) {
-                    for (int config = 0; config < IC_CONFIGS.length && parser == null; config++) {
-                        for (String name : iconName != null && !iconName.equals("ic_launcher") ? new String[]{iconName, "ic_launcher"} : new String[]{"ic_launcher"}) {
-                            try {
-                                parser = assetManager.openXmlResourceParser("res/" + IC_DIRS[dir] + IC_CONFIGS[config] + "/" + name + ".xml");
-                            } catch (Exception e) {
-                                continue;
-                            }
+            /**
+             * Parses the appfilter of an icon pack into a map of components,
+             * formatted as "package/class", to drawable resource ids, leaving
+             * out any drawables that do not exist in the pack.
+             */
+            private Map<String, Integer> parseAppFilter(Resources resources) {
+                Map<String, Integer> drawables = new HashMap<>();
+                XmlPullParser parser = null;
+                InputStream inputStream = null;
 
-                            if (parser != null)
-                                break;
-                        }
+                try {
+                    int res = resources.getIdentifier("appfilter", "xml", packageName);
+                    if (res != 0)
+                        parser = resources.getXml(res);
+                    else {
+                        inputStream = resources.getAssets().open("appfilter.xml");
+                        parser = XmlPullParserFactory.newInstance().newPullParser();
+                        parser.setInput(inputStream, "UTF-8");
                     }
-                }
 
-                int backgroundRes = -1, foregroundRes = -1;
-                if (parser != null) {
                     int event;
                     while ((event = parser.getEventType()) != XmlPullParser.END_DOCUMENT) {
-                        if (event == XmlPullParser.START_TAG) {
-                            switch (parser.getName()) {
-                                case "background":
-                                    for (int dir = 0; dir < IC_DIRS.length; dir++) {
-
-                                    }
-                                    try {
-                                        backgroundRes = parser.getAttributeResourceValue("http://schemas.android.com/apk/res/android", "drawable", 0);
-                                    } catch (Exception e) {
-                                        try {
-                                            backgroundRes = parser.getAttributeResourceValue("http://schemas.android.com/apk/res/android", "mipmap", 0);
-                                        } catch (Exception e1) {
-                                        }
-                                    }
-                                    break;
-                                case "foreground":
-                                    try {
-                                        foregroundRes = parser.getAttributeResourceValue("http://schemas.android.com/apk/res/android", "drawable", 0);
-                                    } catch (Exception e) {
-                                        try {
-                                            foregroundRes = parser.getAttributeResourceValue("http://schemas.android.com/apk/res/android", "mipmap", 0);
-                                        } catch (Exception e1) {
-                                        }
-                                    }
-                                    break;
+                        if (event == XmlPullParser.START_TAG && parser.getName().equals("item")) {
+                            String component = parser.getAttributeValue(null, "component");
+                            String drawable = parser.getAttributeValue(null, "drawable");
+                            if (component != null && drawable != null && component.startsWith(COMPONENT_PREFIX) && component.endsWith("}")) {
+                                int drawableRes = resources.getIdentifier(drawable, "drawable", packageName);
+                                if (drawableRes != 0)
+                                    drawables.put(component.substring(COMPONENT_PREFIX.length(), component.length() - 1), drawableRes);
                             }
                         }
+
                         parser.next();
                     }
+                } catch (Exception e) {
+                    if (BuildConfig.DEBUG)
+                        Log.e("AdaptiveIcon", "Could not parse the appfilter of " + packageName + ": " + e.getMessage());
+                } finally {
+                    if (parser instanceof XmlResourceParser)
+                        ((XmlResourceParser) parser).close();
 
-                    parser.close();
-                }
-
-                if (background == null && backgroundRes != 0) {
-                    try {
-                        background = ResourcesCompat.getDrawable(resources, backgroundRes, theme);
-                    } catch (Resources.NotFoundException e) {
-
+                    if (inputStream != null) {
                         try {
-                            background = ResourcesCompat.getDrawable(resources, resources.getIdentifier("ic_launcher_background", "mipmap", info.activityInfo.packageName), theme);
-                        } catch (Resources.NotFoundException e1) {
-                            try {
-                                background = ResourcesCompat.getDrawable(resources, resources.getIdentifier("ic_launcher_background", "drawable", info.activityInfo.packageName), theme);
-                            } catch (Resources.NotFoundException e2) {
-                                background = new ColorDrawable(Color.WHITE);
-                            }
+                            inputStream.close();
+                        } catch (IOException ignored) {
                         }
                     }
                 }
 
-                if (foreground == null) {
-                    try {
-                        foreground = ResourcesCompat.getDrawable(resources, foregroundRes, theme);
-                    } catch (Resources.NotFoundException e) {
-                        try {
-                            foreground = ResourcesCompat.getDrawable(resources, resources.getIdentifier("ic_launcher_foreground", "mipmap", info.activityInfo.packageName), theme);
-                        } catch (Resources.NotFoundException e1) {
-                            try {
-                                foreground = ResourcesCompat.getDrawable(resources, resources.getIdentifier("ic_launcher_foreground", "drawable", info.activityInfo.packageName), theme);
-                            } catch (Resources.NotFoundException e2) {
-                            }
-                        }
-                    }
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
+                return drawables;
             }
 
-            if (foreground != null && background != null)
-                return new AdaptiveIcon(foreground, background, 0.5);
-            else if (fallback != null)
-                return fallback.load(context, info);
-            else return null;
-        }
+            private static class IconPackIndex {
 
-        /**
-         * Crappy async implementation
-         *
-         * @param info     the app to load the icon for
-         * @param callback an interface to pass the adaptive icon to, or null if it cannot be obtained
-         * @return the started thread
-         */
-        public Thread loadAsync(final ResolveInfo info, final AsyncCallback callback) {
-            Thread thread = new Thread() {
-                @Override
-                public void run() {
-                    final AdaptiveIcon icon = load(info);
-                    new Handler(Looper.getMainLooper()).post(new Runnable() {
-                        @Override
-                        public void run() {
-                            callback.onResult(info, icon);
-                        }
-                    });
+                private final long version;
+                private final Resources resources;
+                private final Map<String, Integer> drawables;
+
+                private IconPackIndex(long version, Resources resources, Map<String, Integer> drawables) {
+                    this.version = version;
+                    this.resources = resources;
+                    this.drawables = drawables;
                 }
-            };
-            thread.start();
-            return thread;
+            }
         }
 
-        //TODO: add IconPackFallback
-
         public static class RoundIconFallback extends Fallback {
 
             private Drawable background;
@@ -348,13 +1563,25 @@ public class AdaptiveIcon {
             @Nullable
             @Override
             public AdaptiveIcon load(Context context, ResolveInfo info) {
+                AdaptiveIcon icon = loadSelf(context, info);
+                return icon != null ? icon : loadFallback(context, info);
+            }
+
+            @Override
+            boolean isSelfContained() {
+                return true;
+            }
+
+            @Nullable
+            @Override
+            AdaptiveIcon loadSelf(Context context, ResolveInfo info) {
                 PackageManager packageManager = context.getPackageManager();
                 Drawable roundIcon;
 
+                Resources resources = null;
                 try {
-                    Resources resources = packageManager.getResourcesForApplication(info.activityInfo.packageName);
+                    resources = ResourceUtils.getResourcesForSdk(packageManager, info.activityInfo.applicationInfo, Build.VERSION_CODES.O);
                     Resources.Theme theme = resources.newTheme();
-                    ResourceUtils.setFakeConfig(resources, Build.VERSION_CODES.O);
                     AssetManager assetManager = resources.getAssets();
 
                     XmlResourceParser manifestParser = null;
@@ -397,15 +1624,12 @@ public class AdaptiveIcon {
                         }
                     }
                 } catch (Exception e) {
-                    if (getFallback() != null)
-                        return getFallback().load(context, info);
-                    else {
-                        if (BuildConfig.DEBUG)
-                            Log.e("AdaptiveIcon", "RoundIconFallback threw \n"
-                                    + e.getClass().getName() + ": " + e.getMessage()
-                                    + "\n without a fallback, returning null");
-                        return null;
-                    }
+                    if (BuildConfig.DEBUG)
+                        Log.e("AdaptiveIcon", "RoundIconFallback threw \n"
+                                + e.getClass().getName() + ": " + e.getMessage());
+                    return null;
+                } finally {
+                    ResourceUtils.releaseResourcesForSdk(resources);
                 }
 
                 Bitmap fgBitmap = ImageUtils.drawableToBitmap(roundIcon);
@@ -476,19 +1700,26 @@ public class AdaptiveIcon {
 
             @Override
             public AdaptiveIcon load(Context context, ResolveInfo info) {
+                AdaptiveIcon icon = loadSelf(context, info);
+                return icon != null ? icon : loadFallback(context, info);
+            }
+
+            @Override
+            boolean isSelfContained() {
+                return true;
+            }
+
+            @Nullable
+            @Override
+            AdaptiveIcon loadSelf(Context context, ResolveInfo info) {
                 Drawable foreground;
                 try {
                     foreground = info.loadIcon(context.getPackageManager());
                 } catch (Exception e) {
-                    if (getFallback() != null)
-                        return getFallback().load(context, info);
-                    else {
-                        if (BuildConfig.DEBUG)
-                            Log.e("AdaptiveIcon", "LegacyIconFallback threw \n"
-                                    + e.getClass().getName() + ": " + e.getMessage()
-                                    + "\n without a fallback, returning null");
-                        return null;
-                    }
+                    if (BuildConfig.DEBUG)
+                        Log.e("AdaptiveIcon", "LegacyIconFallback threw \n"
+                                + e.getClass().getName() + ": " + e.getMessage());
+                    return null;
                 }
 
                 Bitmap fgBitmap = ImageUtils.drawableToBitmap(foreground);
@@ -523,6 +1754,40 @@ public class AdaptiveIcon {
                 return fallback;
             }
 
+            /**
+             * Loads the icon using the fallback set by 'withFallback', or
+             * returns null if there isn't one.
+             */
+            @Nullable
+            final AdaptiveIcon loadFallback(Context context, ResolveInfo info) {
+                return fallback != null ? fallback.load(context, info) : null;
+            }
+
+            /**
+             * Loads the icon using only this fallback, if isSelfContained() is
+             * true. Otherwise, this is the same as 'load', and may use the fallback
+             * specified by the 'withFallback' function.
+             */
+            @Nullable
+            AdaptiveIcon loadSelf(Context context, ResolveInfo info) {
+                return load(context, info);
+            }
+
+            /**
+             * @return the name of this fallback, as used in LoadStats
+             */
+            String getName() {
+                String name = getClass().getSimpleName();
+                return name.isEmpty() ? getClass().getName() : name;
+            }
+
+            /**
+             * @return whether loadSelf only attempts to load the icon with this fallback
+             */
+            boolean isSelfContained() {
+                return false;
+            }
+
             /**
              * Loads the adaptive icon for this fallback, or null if it cannot
              * be obtained by this fallback or the fallback specified by the
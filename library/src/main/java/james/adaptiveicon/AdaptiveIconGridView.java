@@ -0,0 +1,450 @@
+package james.adaptiveicon;
+
+import android.animation.ValueAnimator;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.RectF;
+import androidx.annotation.Nullable;
+import android.util.AttributeSet;
+import android.view.MotionEvent;
+import android.view.View;
+import android.view.animation.DecelerateInterpolator;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import james.adaptiveicon.core.PathDataNode;
+import james.adaptiveicon.utils.PathUtils;
+
+/**
+ * Draws a grid of AdaptiveIcons in a single view, for large, static grids
+ * such as launcher pages. Compared to one AdaptiveIconView per cell, there is
+ * only one measure, layout, invalidation and touch listener for the whole
+ * grid, and every cell shares the same shape, paint and renderer.
+ *
+ * Each icon is rendered into a bitmap of the cell's size once, off the main
+ * thread, so drawing a cell is a single bitmap draw. Cells are square, and
+ * the amount of rows depends on the amount of icons and columns. Parallax
+ * offsets are not supported.
+ */
+public class AdaptiveIconGridView extends View {
+
+    private static final float PRESSED_SCALE = 0.9f;
+    private static final float RELEASED_SCALE = 1.1f;
+
+    private final List<Cell> cells = new ArrayList<>();
+    private int columns = 4;
+    private int iconPadding;
+    private int cellSize;
+
+    private int pathType = AdaptiveIconView.PATH_CIRCLE;
+    private AdaptiveIconRenderer renderer;
+    private final Path path = new Path();
+    private final Path scaledPath = new Path();
+    private final Matrix pathMatrix = new Matrix();
+    private int pathScaledSize;
+
+    private final Paint paint;
+    private final RectF bounds = new RectF();
+    private volatile int renderRequest;
+
+    private int pressedPosition = -1;
+    @Nullable
+    private OnIconClickListener listener;
+
+    public AdaptiveIconGridView(Context context) {
+        this(context, null, 0);
+    }
+
+    public AdaptiveIconGridView(Context context, @Nullable AttributeSet attrs) {
+        this(context, attrs, 0);
+    }
+
+    public AdaptiveIconGridView(Context context, @Nullable AttributeSet attrs, int defStyleAttr) {
+        super(context, attrs, defStyleAttr);
+        paint = new Paint();
+        paint.setAntiAlias(true);
+        paint.setColor(Color.LTGRAY);
+        paint.setFilterBitmap(true);
+
+        setPath(AdaptiveIconView.PATH_CIRCLE);
+    }
+
+    /**
+     * Sets the icons to display, in order from the top left of the grid. The
+     * view holds a reference to each icon until the icons are replaced, so
+     * recycling an icon while it is displayed is deferred until then.
+     *
+     * @param icons the icons to display; null items leave their cell empty
+     */
+    public void setIcons(List<AdaptiveIcon> icons) {
+        for (Cell cell : cells) {
+            cell.cancelAnimation();
+            if (cell.icon != null)
+                cell.icon.release();
+        }
+
+        cells.clear();
+        for (AdaptiveIcon icon : icons) {
+            if (icon != null)
+                icon.acquire();
+
+            cells.add(new Cell(icon));
+        }
+
+        pressedPosition = -1;
+        requestLayout();
+        renderIcons();
+    }
+
+    /**
+     * Replaces the icon in a single cell, for example once it has finished loading.
+     *
+     * @param position the position of the cell
+     * @param icon     the icon to display in it
+     */
+    public void setIcon(int position, @Nullable AdaptiveIcon icon) {
+        Cell cell = cells.get(position);
+        if (icon != null)
+            icon.acquire();
+        if (cell.icon != null)
+            cell.icon.release();
+
+        cell.icon = icon;
+        cell.bitmap = null;
+        renderCell(cell, renderRequest, cellSize - iconPadding * 2);
+        invalidate();
+    }
+
+    @Nullable
+    public AdaptiveIcon getIcon(int position) {
+        return cells.get(position).icon;
+    }
+
+    public int getIconCount() {
+        return cells.size();
+    }
+
+    /**
+     * @param columns the amount of cells in each row
+     */
+    public void setColumnCount(int columns) {
+        if (columns < 1)
+            throw new IllegalArgumentException("There must be at least one column.");
+
+        this.columns = columns;
+        if (getWidth() > 0 && getWidth() / columns != cellSize) {
+            cellSize = getWidth() / columns;
+            renderIcons();
+        }
+        requestLayout();
+    }
+
+    public int getColumnCount() {
+        return columns;
+    }
+
+    /**
+     * @param padding the space around the icon in each cell, in pixels, which
+     *                the icons also bounce into after they are clicked
+     */
+    public void setIconPadding(int padding) {
+        iconPadding = padding;
+        renderIcons();
+    }
+
+    /**
+     * Sets the shape of every icon in the grid.
+     *
+     * @param pathType must be either PATH_CIRCLE, PATH_SQUIRCLE, PATH_ROUNDED_SQUARE, PATH_SQUARE, or PATH_TEARDROP
+     */
+    public void setPath(int pathType) {
+        PathDataNode[] nodes = AdaptiveIconView.getPathNodes(pathType);
+        if (nodes == null)
+            throw new IllegalArgumentException("Invalid path type: " + pathType);
+
+        this.pathType = pathType;
+        renderer = new AdaptiveIconRenderer(pathType);
+        path.reset();
+        PathUtils.nodesToPath(nodes, path);
+        pathScaledSize = 0;
+        renderIcons();
+    }
+
+    public int getPathType() {
+        return pathType;
+    }
+
+    /**
+     * @param listener the listener to notify when an icon is clicked
+     */
+    public void setOnIconClickListener(@Nullable OnIconClickListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @return the position of the icon at the given coordinates, or -1 if there isn't one
+     */
+    public int getPositionAt(float x, float y) {
+        if (cellSize <= 0 || x < 0 || y < 0 || x >= cellSize * columns)
+            return -1;
+
+        int column = (int) (x / cellSize), row = (int) (y / cellSize);
+        int position = row * columns + column;
+        if (position >= cells.size() || cells.get(position).icon == null)
+            return -1;
+
+        // only the icon itself is touchable, not the padding around it
+        float cellX = x - column * cellSize, cellY = y - row * cellSize;
+        if (cellX < iconPadding || cellY < iconPadding || cellX > cellSize - iconPadding || cellY > cellSize - iconPadding)
+            return -1;
+
+        return position;
+    }
+
+    /**
+     * @return the amount of bytes used by the rendered icons of this view
+     */
+    public long getByteCount() {
+        long bytes = 0;
+        for (Cell cell : cells) {
+            if (cell.bitmap != null)
+                bytes += cell.bitmap.getByteCount();
+        }
+
+        return bytes;
+    }
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        int width = MeasureSpec.getSize(widthMeasureSpec);
+        int rows = (cells.size() + columns - 1) / columns;
+        int height = resolveSize(rows * (width / columns), heightMeasureSpec);
+        setMeasuredDimension(width, height);
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        if (w / columns != cellSize) {
+            cellSize = w / columns;
+            renderIcons();
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        // the rendered icons are not needed while the view is not drawn
+        renderRequest++;
+        for (Cell cell : cells) {
+            cell.cancelAnimation();
+            cell.bitmap = null;
+            cell.isRendering = false;
+        }
+        super.onDetachedFromWindow();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        int iconSize = cellSize - iconPadding * 2;
+        if (iconSize <= 0)
+            return;
+
+        if (pathScaledSize != iconSize) {
+            pathMatrix.setScale(iconSize / 100f, iconSize / 100f);
+            path.transform(pathMatrix, scaledPath);
+            pathScaledSize = iconSize;
+        }
+
+        for (int i = 0; i < cells.size(); i++) {
+            Cell cell = cells.get(i);
+            if (cell.icon == null)
+                continue;
+
+            float left = (i % columns) * cellSize + iconPadding, top = (i / columns) * cellSize + iconPadding;
+            if (cell.bitmap == null) {
+                // a placeholder in the shape of the icon, until it has been rendered
+                // (again, if the rendered icons were released while the view was detached)
+                if (!cell.isRendering)
+                    renderCell(cell, renderRequest, iconSize);
+
+                canvas.save();
+                canvas.translate(left, top);
+                canvas.drawPath(scaledPath, paint);
+                canvas.restore();
+                continue;
+            }
+
+            // the bounce after a click grows the icon into its padding, but never into the neighbouring cells
+            float inset = Math.max(-iconPadding, iconSize * (1 - cell.scale) / 2);
+            bounds.set(left + inset, top + inset, left + iconSize - inset, top + iconSize - inset);
+            canvas.drawBitmap(cell.bitmap, null, bounds, paint);
+        }
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+                pressedPosition = getPositionAt(event.getX(), event.getY());
+                if (pressedPosition < 0)
+                    return false;
+
+                cells.get(pressedPosition).animateTo(PRESSED_SCALE, false);
+                return true;
+            case MotionEvent.ACTION_MOVE:
+                if (pressedPosition >= 0 && getPositionAt(event.getX(), event.getY()) != pressedPosition) {
+                    cells.get(pressedPosition).animateTo(1, false);
+                    pressedPosition = -1;
+                }
+                return true;
+            case MotionEvent.ACTION_UP:
+                if (pressedPosition >= 0) {
+                    int position = pressedPosition;
+                    pressedPosition = -1;
+                    cells.get(position).animateTo(1, true);
+                    if (listener != null)
+                        listener.onIconClick(this, position, cells.get(position).icon);
+
+                    performClick();
+                }
+                return true;
+            case MotionEvent.ACTION_CANCEL:
+                if (pressedPosition >= 0) {
+                    cells.get(pressedPosition).animateTo(1, false);
+                    pressedPosition = -1;
+                }
+                return true;
+        }
+
+        return super.onTouchEvent(event);
+    }
+
+    @Override
+    public boolean performClick() {
+        return super.performClick();
+    }
+
+    /**
+     * Discards the rendered icons, and starts rendering them again at the current
+     * cell size and shape.
+     */
+    private void renderIcons() {
+        int request = ++renderRequest;
+        int iconSize = cellSize - iconPadding * 2;
+        for (Cell cell : cells) {
+            cell.bitmap = null;
+            cell.isRendering = false;
+            renderCell(cell, request, iconSize);
+        }
+
+        invalidate();
+    }
+
+    private void renderCell(final Cell cell, final int request, final int iconSize) {
+        final AdaptiveIcon icon = cell.icon;
+        final AdaptiveIconRenderer renderer = this.renderer;
+        if (icon == null || iconSize <= 0)
+            return;
+
+        cell.isRendering = true;
+        // held until the rendered bitmap reaches the main thread, so that replacing and recycling
+        // the icon does not recycle its bitmaps while they are being rendered
+        icon.acquire();
+        AdaptiveIconView.LAYER_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (request != renderRequest) {
+                    icon.release();
+                    return;
+                }
+
+                final Bitmap bitmap = renderer.render(icon, iconSize);
+                AdaptiveIconView.MAIN_HANDLER.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (request == renderRequest && cell.icon == icon) {
+                            cell.bitmap = bitmap;
+                            cell.isRendering = false;
+                            invalidate();
+                        }
+
+                        icon.release();
+                    }
+                });
+            }
+        });
+    }
+
+    public interface OnIconClickListener {
+        void onIconClick(AdaptiveIconGridView view, int position, AdaptiveIcon icon);
+    }
+
+    /**
+     * The icon in a single cell of the grid, and its press animation.
+     */
+    private class Cell {
+
+        @Nullable
+        private AdaptiveIcon icon;
+        @Nullable
+        private Bitmap bitmap;
+        private boolean isRendering;
+
+        private float scale = 1;
+        @Nullable
+        private ValueAnimator animator;
+        private float animatorStartScale, animatorEndScale;
+        private boolean isBouncing;
+
+        private Cell(@Nullable AdaptiveIcon icon) {
+            this.icon = icon;
+        }
+
+        /**
+         * Animates the scale of the icon.
+         *
+         * @param scale  the scale to end at
+         * @param bounce whether to overshoot the scale before settling, as AdaptiveIconView does when it is clicked
+         */
+        private void animateTo(float scale, boolean bounce) {
+            if (animator == null) {
+                animator = ValueAnimator.ofFloat(0, 1);
+                animator.setInterpolator(new DecelerateInterpolator());
+                animator.addUpdateListener(new ValueAnimator.AnimatorUpdateListener() {
+                    @Override
+                    public void onAnimationUpdate(ValueAnimator valueAnimator) {
+                        float fraction = valueAnimator.getAnimatedFraction();
+                        if (!isBouncing)
+                            Cell.this.scale = animatorStartScale + (animatorEndScale - animatorStartScale) * fraction;
+                        else if (fraction < 0.5f)
+                            Cell.this.scale = animatorStartScale + (RELEASED_SCALE - animatorStartScale) * fraction * 2;
+                        else Cell.this.scale = RELEASED_SCALE + (animatorEndScale - RELEASED_SCALE) * (fraction - 0.5f) * 2;
+
+                        invalidate();
+                    }
+                });
+            } else if (animator.isStarted())
+                animator.cancel();
+
+            animatorStartScale = this.scale;
+            animatorEndScale = scale;
+            isBouncing = bounce;
+            animator.setDuration(bounce ? 500 : 150);
+            animator.start();
+        }
+
+        private void cancelAnimation() {
+            if (animator != null)
+                animator.cancel();
+
+            scale = 1;
+        }
+    }
+
+}
@@ -0,0 +1,265 @@
+package james.adaptiveicon;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import android.media.ThumbnailUtils;
+import androidx.annotation.Nullable;
+
+import james.adaptiveicon.core.PathDataNode;
+import james.adaptiveicon.utils.PathUtils;
+
+/**
+ * Renders AdaptiveIcons into bitmaps without a View, for use in widgets,
+ * notifications, shortcuts, or anywhere else that needs a shaped icon.
+ *
+ * A renderer is immutable once it has been created, and can be used to render
+ * many icons from several threads at once - each thread draws with its own
+ * canvas, paint and path. The layers are drawn straight from the icon's bitmaps,
+ * so no intermediate scaled bitmaps are created.
+ */
+public class AdaptiveIconRenderer {
+
+    private final Path path;
+    private final Rect pathSize;
+
+    private final ThreadLocal<RenderState> state = new ThreadLocal<RenderState>() {
+        @Override
+        protected RenderState initialValue() {
+            return new RenderState();
+        }
+    };
+
+    /**
+     * Creates a renderer that draws icons in a circle.
+     */
+    public AdaptiveIconRenderer() {
+        this(AdaptiveIconView.PATH_CIRCLE);
+    }
+
+    /**
+     * @param pathType must be either PATH_CIRCLE, PATH_SQUIRCLE, PATH_ROUNDED_SQUARE, PATH_SQUARE, or PATH_TEARDROP
+     */
+    public AdaptiveIconRenderer(int pathType) {
+        PathDataNode[] nodes = AdaptiveIconView.getPathNodes(pathType);
+        if (nodes == null)
+            throw new IllegalArgumentException("Invalid path type: " + pathType);
+
+        path = new Path();
+        PathUtils.nodesToPath(nodes, path);
+        pathSize = AdaptiveIconView.PATH_DATA_SIZE;
+    }
+
+    /**
+     * @param pathData a path data string within a 100x100 rect
+     */
+    public AdaptiveIconRenderer(String pathData) {
+        path = PathUtils.createPathFromPathData(pathData);
+        pathSize = AdaptiveIconView.PATH_DATA_SIZE;
+    }
+
+    /**
+     * @param size the bounds of the path, used to scale it to fit the size of the icon
+     * @param path the custom path, which is copied by the renderer
+     */
+    public AdaptiveIconRenderer(Rect size, Path path) {
+        this.path = new Path(path);
+        pathSize = new Rect(size);
+    }
+
+    /**
+     * Renders an icon into a new square bitmap.
+     *
+     * @param icon the icon to render
+     * @param size the width and height of the bitmap, in pixels
+     * @return a new bitmap containing the shaped icon
+     */
+    public Bitmap render(AdaptiveIcon icon, int size) {
+        return render(icon, Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888), 0, 0);
+    }
+
+    /**
+     * Renders an icon into a bitmap obtained from a pool. The bitmap should
+     * be returned to the pool once it is no longer needed.
+     *
+     * @param icon   the icon to render
+     * @param width  the width of the bitmap, in pixels
+     * @param height the height of the bitmap, in pixels
+     * @param pool   the pool to obtain the bitmap from
+     * @return a pooled bitmap containing the shaped icon
+     */
+    public Bitmap render(AdaptiveIcon icon, int width, int height, BitmapPool pool) {
+        return render(icon, pool.acquire(width, height), 0, 0);
+    }
+
+    /**
+     * Renders an icon into an existing bitmap, replacing its contents.
+     *
+     * @param icon    the icon to render
+     * @param bitmap  a mutable bitmap to draw the icon into
+     * @param offsetX the amount to move the icon (reversed) horizontally, between 0 and 1
+     * @param offsetY the amount to move the icon (reversed) vertically, between 0 and 1
+     * @return the passed bitmap
+     */
+    public Bitmap render(AdaptiveIcon icon, Bitmap bitmap, float offsetX, float offsetY) {
+        RenderState state = this.state.get();
+        bitmap.eraseColor(Color.TRANSPARENT);
+        state.canvas.setBitmap(bitmap);
+        draw(state, icon, bitmap.getWidth(), bitmap.getHeight(), offsetX, offsetY);
+        state.canvas.setBitmap(null);
+        return bitmap;
+    }
+
+    /**
+     * Renders an icon into an area of an existing bitmap, replacing the contents
+     * of that area and leaving the rest of the bitmap untouched.
+     *
+     * @param icon    the icon to render
+     * @param bitmap  a mutable bitmap to draw the icon into
+     * @param bounds  the area of the bitmap to draw the icon in
+     * @param offsetX the amount to move the icon (reversed) horizontally, between 0 and 1
+     * @param offsetY the amount to move the icon (reversed) vertically, between 0 and 1
+     * @return the passed bitmap
+     */
+    public Bitmap render(AdaptiveIcon icon, Bitmap bitmap, Rect bounds, float offsetX, float offsetY) {
+        RenderState state = this.state.get();
+        state.canvas.setBitmap(bitmap);
+        state.canvas.save();
+        state.canvas.clipRect(bounds);
+        state.canvas.translate(bounds.left, bounds.top);
+        state.canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+        draw(state, icon, bounds.right - bounds.left, bounds.bottom - bounds.top, offsetX, offsetY);
+        state.canvas.restore();
+        state.canvas.setBitmap(null);
+        return bitmap;
+    }
+
+    private void draw(RenderState state, AdaptiveIcon icon, int width, int height, float offsetX, float offsetY) {
+        double scale = icon.getScale();
+        Bitmap fgBitmap = icon.getFgBitmap();
+        Bitmap bgBitmap = icon.getBgBitmap();
+
+        state.paint.setXfermode(null);
+        if (bgBitmap != null) {
+            state.matrix.setScale((float) width / (pathSize.right - pathSize.left), (float) height / (pathSize.bottom - pathSize.top));
+            path.transform(state.matrix, state.path);
+            state.canvas.drawPath(state.path, state.paint);
+
+            // the shape has been drawn onto a transparent area, so SRC_ATOP
+            // clips each layer to it while keeping its anti-aliased edges
+            state.paint.setXfermode(state.clipMode);
+            if (setLayerMatrix(state.matrix, bgBitmap, scale, width, height))
+                state.matrix.postTranslate(width * offsetX * 0.066f, height * offsetY * 0.066f);
+
+            state.canvas.drawBitmap(bgBitmap, state.matrix, state.paint);
+
+            if (fgBitmap != null) {
+                setLayerMatrix(state.matrix, fgBitmap, scale, width, height);
+                state.matrix.postTranslate(width * offsetX * 0.188f, height * offsetY * 0.188f);
+                state.canvas.drawBitmap(fgBitmap, state.matrix, state.paint);
+            }
+        } else if (fgBitmap != null) {
+            setCropMatrix(state.matrix, fgBitmap, width, height);
+            state.matrix.postTranslate(width * offsetX * 0.188f, height * offsetY * 0.188f);
+            state.canvas.drawBitmap(fgBitmap, state.matrix, state.paint);
+        }
+    }
+
+    /**
+     * Sets the matrix to draw a layer at the size and position that
+     * getScaledBitmap would scale it to, centered in the icon.
+     *
+     * @return whether the layer extends past the bounds of the icon, and can be offset
+     */
+    private static boolean setLayerMatrix(Matrix matrix, Bitmap layer, double scale, int width, int height) {
+        if (scale > 1 && (layer.getWidth() <= 1 || layer.getHeight() <= 1)) {
+            setCropMatrix(matrix, layer, width, height);
+            return false;
+        }
+
+        int layerWidth = (int) ((2 - scale) * width);
+        int layerHeight = (int) ((2 - scale) * height);
+        setCropMatrix(matrix, layer, layerWidth, layerHeight);
+        matrix.postTranslate((width - layerWidth) / 2f, (height - layerHeight) / 2f);
+        return scale != 1;
+    }
+
+    /**
+     * Sets the matrix to scale a bitmap to cover the given size, centering it
+     * in the same way as ThumbnailUtils.extractThumbnail.
+     */
+    private static void setCropMatrix(Matrix matrix, Bitmap bitmap, int width, int height) {
+        float crop = Math.max((float) width / bitmap.getWidth(), (float) height / bitmap.getHeight());
+        matrix.setScale(crop, crop);
+        matrix.postTranslate((width - bitmap.getWidth() * crop) / 2f, (height - bitmap.getHeight() * crop) / 2f);
+    }
+
+    /**
+     * Scales an icon layer to fit the size of an icon. Layers with a scale of
+     * 1 or less are scaled up to fill past the bounds of the icon, while larger
+     * scales leave a transparent margin around the layer.
+     *
+     * @param bitmap the layer to scale
+     * @param scale  the scale of the icon, as in AdaptiveIcon.getScale()
+     * @param width  the width of the icon
+     * @param height the height of the icon
+     * @return the scaled layer, or null if it could not be scaled
+     */
+    @Nullable
+    static Bitmap getScaledBitmap(Bitmap bitmap, double scale, int width, int height) {
+        if (scale <= 1)
+            return ThumbnailUtils.extractThumbnail(bitmap, (int) ((2 - scale) * width), (int) ((2 - scale) * height));
+        else if (bitmap.getWidth() > 1 && bitmap.getHeight() > 1) {
+            int widthMargin = (int) ((scale - 1) * width);
+            int heightMargin = (int) ((scale - 1) * height);
+
+            if (widthMargin > 0 && heightMargin > 0) {
+                Bitmap source = ThumbnailUtils.extractThumbnail(bitmap, (int) ((2 - scale) * width), (int) ((2 - scale) * height));
+                int dWidth = width + widthMargin;
+                int dHeight = height + heightMargin;
+                bitmap = Bitmap.createBitmap(dWidth, dHeight, bitmap.getConfig());
+                Canvas canvas = new Canvas(bitmap);
+                canvas.drawBitmap(source, (dWidth - source.getWidth()) / 2, (dHeight - source.getHeight()) / 2, new Paint());
+                return bitmap;
+            }
+        } else if (bitmap.getWidth() > 0 && bitmap.getHeight() > 0)
+            return ThumbnailUtils.extractThumbnail(bitmap, width, height);
+
+        return null;
+    }
+
+    /**
+     * Surrounds a bitmap with a transparent border, so that it can be used in a
+     * clamped BitmapShader without stretching its edges across the shape.
+     */
+    static Bitmap getBorderedBitmap(Bitmap bitmap) {
+        Bitmap bordered = Bitmap.createBitmap(bitmap.getWidth() + 2, bitmap.getHeight() + 2, Bitmap.Config.ARGB_8888);
+        new Canvas(bordered).drawBitmap(bitmap, 1, 1, null);
+        return bordered;
+    }
+
+    /**
+     * The drawing objects used by a single thread.
+     */
+    private static class RenderState {
+
+        private final Canvas canvas = new Canvas();
+        private final Paint paint = new Paint();
+        private final Matrix matrix = new Matrix();
+        private final Path path = new Path();
+        private final PorterDuffXfermode clipMode = new PorterDuffXfermode(PorterDuff.Mode.SRC_ATOP);
+
+        private RenderState() {
+            paint.setAntiAlias(true);
+            paint.setColor(Color.LTGRAY);
+            paint.setFilterBitmap(true);
+        }
+    }
+
+}
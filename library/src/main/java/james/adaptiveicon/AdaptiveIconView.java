@@ -3,20 +3,33 @@ package james.adaptiveicon;
 import android.animation.ValueAnimator;
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.BitmapShader;
 import android.graphics.Canvas;
 import android.graphics.Color;
+import android.graphics.Picture;
 import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Path;
 import android.graphics.Rect;
-import android.graphics.RectF;
+import android.graphics.Shader;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
 import android.media.ThumbnailUtils;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import androidx.annotation.Nullable;
 import android.util.AttributeSet;
 import android.view.MotionEvent;
 import android.view.View;
 import android.view.animation.DecelerateInterpolator;
 
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+import james.adaptiveicon.core.PathDataNode;
+import james.adaptiveicon.core.PathParser;
+import james.adaptiveicon.utils.ImageUtils;
 import james.adaptiveicon.utils.PathUtils;
 
 public class AdaptiveIconView extends View implements View.OnTouchListener { //TODO: remove arbitrary calculations, improve bitmap handling
@@ -27,21 +40,102 @@ public class AdaptiveIconView extends View implements View.OnTouchListener { //T
     public static final int PATH_SQUARE = 3;
     public static final int PATH_TEARDROP = 4;
 
+    /**
+     * Path data for each of the preset shapes, in a 100x100 rect. They are all
+     * written as the same sequence of cubic segments (a straight edge, a corner,
+     * and another edge for each quarter of the shape) so that any preset can be
+     * morphed into any other.
+     */
+    private static final String[] PATH_DATA = new String[]{
+            "M 50,0 C 50,0 50,0 50,0 77.62,0 100,22.38 100,50 100,50 100,50 100,50 "
+                    + "100,50 100,50 100,50 100,77.62 77.62,100 50,100 50,100 50,100 50,100 "
+                    + "50,100 50,100 50,100 22.38,100 0,77.62 0,50 0,50 0,50 0,50 "
+                    + "0,50 0,50 0,50 0,22.38 22.38,0 50,0 50,0 50,0 50,0 Z",
+            "M 50,0 C 50,0 50,0 50,0 90,0 100,10 100,50 100,50 100,50 100,50 "
+                    + "100,50 100,50 100,50 100,90 90,100 50,100 50,100 50,100 50,100 "
+                    + "50,100 50,100 50,100 10,100 0,90 0,50 0,50 0,50 0,50 "
+                    + "0,50 0,50 0,50 0,10 10,0 50,0 50,0 50,0 50,0 Z",
+            "M 50,0 C 56.67,0 63.33,0 70,0 86.57,0 100,13.43 100,30 100,36.67 100,43.33 100,50 "
+                    + "100,56.67 100,63.33 100,70 100,86.57 86.57,100 70,100 63.33,100 56.67,100 50,100 "
+                    + "43.33,100 36.67,100 30,100 13.43,100 0,86.57 0,70 0,63.33 0,56.67 0,50 "
+                    + "0,43.33 0,36.67 0,30 0,13.43 13.43,0 30,0 36.67,0 43.33,0 50,0 Z",
+            "M 50,0 C 66.67,0 83.33,0 100,0 100,0 100,0 100,0 100,16.67 100,33.33 100,50 "
+                    + "100,66.67 100,83.33 100,100 100,100 100,100 100,100 83.33,100 66.67,100 50,100 "
+                    + "33.33,100 16.67,100 0,100 0,100 0,100 0,100 0,83.33 0,66.67 0,50 "
+                    + "0,33.33 0,16.67 0,0 0,0 0,0 0,0 16.67,0 33.33,0 50,0 Z",
+            "M 50,0 C 50,0 50,0 50,0 77.62,0 100,22.38 100,50 100,50 100,50 100,50 "
+                    + "100,61.67 100,73.33 100,85 100,93.28 93.28,100 85,100 73.33,100 61.67,100 50,100 "
+                    + "50,100 50,100 50,100 22.38,100 0,77.62 0,50 0,50 0,50 0,50 "
+                    + "0,50 0,50 0,50 0,22.38 22.38,0 50,0 50,0 50,0 50,0 Z"
+    };
+    private static final PathDataNode[][] PATH_NODES = new PathDataNode[PATH_DATA.length][];
+    static final Rect PATH_DATA_SIZE = new Rect(0, 0, 100, 100);
+
+    static {
+        // parsed once, and never modified, so that they can be shared between threads
+        for (int i = 0; i < PATH_DATA.length; i++) {
+            PATH_NODES[i] = PathParser.createNodesFromPathData(PATH_DATA[i]);
+        }
+    }
+    private static final long MORPH_DURATION = 300;
+    private static final long CROSS_FADE_DURATION = 200;
+
+    // scaled layers are created off the main thread, and handed back to the views through the handler
+    static final Executor LAYER_EXECUTOR = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+    static final Handler MAIN_HANDLER = new Handler(Looper.getMainLooper());
+
     private AdaptiveIcon icon;
     private Path path;
     private Rect pathSize;
+    private int pathType = -1;
+
+    private PathDataNode[] pathNodes;
+    private PathDataNode[] morphFromNodes, morphToNodes, morphNodes;
+    private Path nodePath;
+    private PathUtils.AndroidPathSink nodePathSink;
 
     private Bitmap scaledBgBitmap, scaledFgBitmap;
     private Path scaledPath;
+    private Matrix pathMatrix;
+    private boolean isPathScaled, isIconScaled;
+    private volatile int layersRequest;
+    private boolean isLayersPending;
+    private boolean isDirectDrawing;
+    private boolean isHardwareLayers;
+    private Rect drawableBounds;
+    // copies of the icon's drawables, which are drawn instead of the originals when drawing directly
+    @Nullable
+    private AdaptiveIcon directIcon;
+    @Nullable
+    private Drawable directFgDrawable, directBgDrawable;
+    @Nullable
+    private LayerInterner interner;
+    // the interner that the current scaled layers were obtained from
+    @Nullable
+    private LayerInterner scaledInterner;
 
     private int width, height;
 
     private float fgScale = 1;
     private float offsetX, offsetY;
+    private ParallaxController parallaxController;
+
+    private IconAtlas atlas;
+    private IconAtlas.Entry atlasEntry;
+    private Rect atlasBounds;
 
     private Paint paint;
+    private Paint bgPaint, fgPaint;
+    private Matrix bgMatrix, fgMatrix;
 
     private ValueAnimator animator;
+    private float animatorStartScale;
+    private ValueAnimator morphAnimator;
+
+    // the previous icon as it was last drawn, faded out over the current one
+    private Bitmap fadeBitmap;
+    private Paint fadePaint;
+    private ValueAnimator fadeAnimator;
 
     public AdaptiveIconView(Context context) {
         this(context, null, 0);
@@ -58,6 +152,19 @@ public class AdaptiveIconView extends View implements View.OnTouchListener { //T
         paint.setColor(Color.LTGRAY);
         paint.setFilterBitmap(true);
 
+        bgPaint = new Paint(paint);
+        fgPaint = new Paint(paint);
+        fadePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        bgMatrix = new Matrix();
+        fgMatrix = new Matrix();
+        atlasBounds = new Rect();
+        drawableBounds = new Rect();
+
+        nodePath = new Path();
+        nodePathSink = new PathUtils.AndroidPathSink(nodePath);
+        scaledPath = new Path();
+        pathMatrix = new Matrix();
+
         setPath(PATH_CIRCLE);
         setOnTouchListener(this);
     }
@@ -65,14 +172,43 @@ public class AdaptiveIconView extends View implements View.OnTouchListener { //T
     /**
      * Sets the icon for this view to use. It must contain a foreground image,
      * but the background image is optional - without it, the foreground image
-     * will not be clipped and any scaling will not be applied.
+     * will not be clipped and any scaling will not be applied. The view holds
+     * a reference to the icon until another one is set, so recycling the icon
+     * while it is displayed is deferred until then.
      *
      * @param icon the icon for this view to use
      */
     public void setIcon(AdaptiveIcon icon) {
+        setIcon(icon, false);
+    }
+
+    /**
+     * Sets the icon for this view to use, optionally cross-fading from the
+     * current one. This is intended for replacing a preview of the same app's
+     * icon, such as the legacy icon passed to a preview callback, with the full
+     * icon once it has loaded - the size and layout of the view do not change.
+     *
+     * @param icon      the icon for this view to use
+     * @param crossFade whether to fade out the current icon over the new one
+     */
+    public void setIcon(AdaptiveIcon icon, boolean crossFade) {
+        cancelCrossFade();
+        if (crossFade && icon != this.icon && getWindowToken() != null)
+            captureFadeBitmap();
+
+        releaseAtlasEntry();
+        if (icon != null)
+            icon.acquire();
+        if (this.icon != null)
+            this.icon.release();
+
         this.icon = icon;
-        scaledFgBitmap = null;
-        scaledBgBitmap = null;
+        directIcon = null;
+        directFgDrawable = null;
+        directBgDrawable = null;
+        releaseScaledLayers();
+        if (atlas == null && !canDrawDirectly())
+            prepareScaledLayers();
         postInvalidate();
     }
 
@@ -93,9 +229,12 @@ public class AdaptiveIconView extends View implements View.OnTouchListener { //T
      * @param path the custom path
      */
     public void setPath(Rect size, Path path) {
+        cancelMorph();
         this.path = path;
-        scaledPath = null;
         pathSize = size;
+        pathType = -1;
+        pathNodes = null;
+        isPathScaled = false;
         postInvalidate();
     }
 
@@ -105,32 +244,23 @@ public class AdaptiveIconView extends View implements View.OnTouchListener { //T
      * @param pathType must be either PATH_CIRCLE, PATH_SQUIRCLE, PATH_ROUNDED_SQUARE, PATH_SQUARE, or PATH_TEARDROP
      */
     public void setPath(int pathType) {
-        path = new Path();
-        pathSize = new Rect(0, 0, 50, 50);
-        switch (pathType) {
-            case PATH_CIRCLE:
-                path.arcTo(new RectF(pathSize), 0, 359);
-                path.close();
-                break;
-            case PATH_SQUIRCLE:
-                setPath("M 50,0 C 10,0 0,10 0,50 C 0,90 10,100 50,100 C 90,100 100,90 100,50 C 100,10 90,0 50,0 Z");
-                break;
-            case PATH_ROUNDED_SQUARE:
-                setPath("M 50,0 L 70,0 A 30,30,0,0 1 100,30 L 100,70 A 30,30,0,0 1 70,100 L 30,100 A 30,30,0,0 1 0,70 L 0,30 A 30,30,0,0 1 30,0 z");
-                break;
-            case PATH_SQUARE:
-                path.lineTo(0, 50);
-                path.lineTo(50, 50);
-                path.lineTo(50, 0);
-                path.lineTo(0, 0);
-                path.close();
-                break;
-            case PATH_TEARDROP:
-                setPath("M 50,0 A 50,50,0,0 1 100,50 L 100,85 A 15,15,0,0 1 85,100 L 50,100 A 50,50,0,0 1 50,0 z");
-                break;
-        }
+        setPath(pathType, false);
+    }
 
-        postInvalidate();
+    /**
+     * Sets a path for this view to use from one of the presets, optionally
+     * morphing the current shape into the new one. All of the presets can be
+     * morphed into each other.
+     *
+     * @param pathType must be either PATH_CIRCLE, PATH_SQUIRCLE, PATH_ROUNDED_SQUARE, PATH_SQUARE, or PATH_TEARDROP
+     * @param animate  whether to animate the change from the current path
+     */
+    public void setPath(int pathType, boolean animate) {
+        if (pathType < 0 || pathType >= PATH_NODES.length || pathType == this.pathType)
+            return;
+
+        setPathNodes(PATH_NODES[pathType], animate);
+        this.pathType = pathType;
     }
 
     /**
@@ -139,8 +269,91 @@ public class AdaptiveIconView extends View implements View.OnTouchListener { //T
      * @param pathData the path data string to use
      */
     public void setPath(String pathData) {
-        path = PathUtils.createPathFromPathData(pathData);
-        pathSize = new Rect(0, 0, 100, 100);
+        setPath(pathData, false);
+    }
+
+    /**
+     * Sets a custom path from string data, optionally morphing the current
+     * shape into the new one. The change will only be animated if both paths
+     * have the same sequence of commands and parameters - otherwise, the new
+     * path is applied immediately.
+     *
+     * @param pathData the path data string to use, within a 100x100 rect
+     * @param animate  whether to animate the change from the current path
+     */
+    public void setPath(String pathData, boolean animate) {
+        setPathNodes(PathParser.createNodesFromPathData(pathData), animate);
+        pathType = -1;
+    }
+
+    /**
+     * @param pathType one of the PATH_* presets
+     * @return the shared nodes of the preset, which must not be modified, or null if the type is invalid
+     */
+    @Nullable
+    static PathDataNode[] getPathNodes(int pathType) {
+        return pathType >= 0 && pathType < PATH_NODES.length ? PATH_NODES[pathType] : null;
+    }
+
+    private void setPathNodes(PathDataNode[] nodes, boolean animate) {
+        if (animate && path == nodePath && PathUtils.canMorph(pathNodes, nodes)) {
+            morphPath(nodes);
+            return;
+        }
+
+        cancelMorph();
+        pathNodes = nodes;
+        nodePath.rewind();
+        PathUtils.nodesToPath(nodes, nodePathSink);
+        path = nodePath;
+        pathSize = PATH_DATA_SIZE;
+        isPathScaled = false;
+        postInvalidate();
+    }
+
+    /**
+     * Animates the current node path into the passed nodes, interpolating into
+     * buffers that are only reallocated when the structure of the path changes.
+     *
+     * @param nodes the nodes to morph into, which must be morphable from pathNodes
+     */
+    private void morphPath(PathDataNode[] nodes) {
+        if (!PathUtils.canMorph(morphNodes, nodes)) {
+            morphNodes = PathUtils.deepCopyNodes(nodes);
+            morphFromNodes = PathUtils.deepCopyNodes(nodes);
+            PathUtils.updateNodes(morphNodes, pathNodes);
+        }
+
+        if (morphAnimator == null) {
+            morphAnimator = ValueAnimator.ofFloat(0, 1);
+            morphAnimator.setDuration(MORPH_DURATION);
+            morphAnimator.setInterpolator(new DecelerateInterpolator());
+            morphAnimator.addUpdateListener(new ValueAnimator.AnimatorUpdateListener() {
+                @Override
+                public void onAnimationUpdate(ValueAnimator valueAnimator) {
+                    PathUtils.interpolateNodes(morphNodes, morphFromNodes, morphToNodes, valueAnimator.getAnimatedFraction());
+                    nodePath.rewind();
+                    PathUtils.nodesToPath(morphNodes, nodePathSink);
+                    if (isPathScaled)
+                        nodePath.transform(pathMatrix, scaledPath);
+
+                    invalidate();
+                }
+            });
+        } else if (morphAnimator.isStarted()) {
+            morphAnimator.cancel();
+        } else PathUtils.updateNodes(morphNodes, pathNodes);
+
+        // morphNodes holds the currently displayed shape, whether or not a morph was interrupted
+        PathUtils.updateNodes(morphFromNodes, morphNodes);
+        morphToNodes = nodes;
+        pathNodes = nodes;
+        morphAnimator.start();
+    }
+
+    private void cancelMorph() {
+        if (morphAnimator != null && morphAnimator.isStarted())
+            morphAnimator.cancel();
     }
 
     /**
@@ -152,6 +365,51 @@ public class AdaptiveIconView extends View implements View.OnTouchListener { //T
         return path;
     }
 
+    /**
+     * Sets whether the view should draw the drawables of its icon directly,
+     * instead of scaling their bitmaps. This keeps vector, color and gradient
+     * layers sharp at any size and avoids holding any bitmaps for them, but
+     * clips the layers with clipPath, which is not anti-aliased on some devices.
+     * Icons with bitmap layers (or that were created from bitmaps) are always
+     * drawn from scaled bitmaps, as that is cheaper than filtering the full
+     * size bitmap every frame.
+     *
+     * @param isDirectDrawing whether to draw the icon's drawables directly
+     */
+    public void setDirectDrawing(boolean isDirectDrawing) {
+        this.isDirectDrawing = isDirectDrawing;
+        releaseScaledLayers();
+        if (atlas == null && !canDrawDirectly())
+            prepareScaledLayers();
+        invalidate();
+    }
+
+    public boolean isDirectDrawing() {
+        return isDirectDrawing;
+    }
+
+    /**
+     * Sets whether the view should move its scaled layers into graphics memory
+     * (as HARDWARE bitmaps) once they have been created, on API 26 and above.
+     * The layers are only ever drawn after they are created, so this keeps
+     * them out of the app's heap without any cost to drawing. It has no effect
+     * if the view is not hardware accelerated.
+     *
+     * @param isHardwareLayers whether to store the scaled layers as hardware bitmaps
+     */
+    public void setHardwareLayers(boolean isHardwareLayers) {
+        if (isHardwareLayers == this.isHardwareLayers)
+            return;
+
+        this.isHardwareLayers = isHardwareLayers;
+        releaseScaledLayers();
+        postInvalidate();
+    }
+
+    public boolean isHardwareLayers() {
+        return isHardwareLayers;
+    }
+
     /**
      * Call this method to offset the icon for animating icon movements
      *
@@ -164,111 +422,531 @@ public class AdaptiveIconView extends View implements View.OnTouchListener { //T
         postInvalidate();
     }
 
+    /**
+     * Applies an offset from the main thread, only invalidating the view
+     * if the offset has actually changed.
+     */
+    void applyOffset(float offsetX, float offsetY) {
+        if (this.offsetX != offsetX || this.offsetY != offsetY) {
+            this.offsetX = offsetX;
+            this.offsetY = offsetY;
+            invalidate();
+        }
+    }
+
+    /**
+     * Sets a ParallaxController to offset this view while it is attached to
+     * a window. This replaces any offset set with setOffset(float, float).
+     *
+     * @param controller the controller to use, or null to stop using one
+     */
+    public void setParallaxController(@Nullable ParallaxController controller) {
+        if (parallaxController != null)
+            parallaxController.unregister(this);
+
+        parallaxController = controller;
+        if (controller != null && getWindowToken() != null)
+            controller.register(this);
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        if (parallaxController != null)
+            parallaxController.register(this);
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        if (parallaxController != null)
+            parallaxController.unregister(this);
+        releaseAtlasEntry();
+        cancelCrossFade();
+        // detached views (such as those in a RecyclerView's pool) are not drawn, so
+        // they should not hold their layers - they are scaled again when next drawn
+        releaseScaledLayers();
+        super.onDetachedFromWindow();
+    }
+
+    /**
+     * Sets a LayerInterner to share this view's scaled layers with other views
+     * through, so that views showing icons with identical layers (such as plain
+     * backgrounds) at the same size hold a single copy of them.
+     *
+     * @param interner the interner to use, or null for the view to hold its own layers
+     */
+    public void setInterner(@Nullable LayerInterner interner) {
+        if (interner == this.interner)
+            return;
+
+        this.interner = interner;
+        releaseScaledLayers();
+        postInvalidate();
+    }
+
+    /**
+     * Sets an IconAtlas for this view to draw its icon from. While an atlas is
+     * set, the view draws the pre-rendered icon from the atlas instead of holding
+     * its own scaled layers - the shape of the atlas' renderer is used instead of
+     * the view's path, and offsets are not applied. If the atlas is full, the
+     * view draws its icon itself.
+     *
+     * @param atlas the atlas to use, or null to draw the icon normally
+     */
+    public void setAtlas(@Nullable IconAtlas atlas) {
+        releaseAtlasEntry();
+        this.atlas = atlas;
+        postInvalidate();
+    }
+
+    void onAtlasEntryRemoved(IconAtlas.Entry entry) {
+        if (atlasEntry == entry) {
+            atlasEntry = null;
+            invalidate();
+        }
+    }
+
+    /**
+     * Scales the layers of the icon again once it has been reloaded by an
+     * IconMemoryGovernor, replacing the placeholder drawn in the meantime.
+     */
+    void onIconReloaded(AdaptiveIcon icon) {
+        if (this.icon == icon) {
+            releaseScaledLayers();
+            invalidate();
+        }
+    }
+
+    private void releaseAtlasEntry() {
+        if (atlasEntry != null) {
+            atlas.release(atlasEntry, this);
+            atlasEntry = null;
+        }
+    }
+
+    /**
+     * @return the amount of bytes used by the scaled layers of this view
+     */
+    long getScaledByteCount() {
+        return (scaledBgBitmap != null ? scaledBgBitmap.getByteCount() : 0) + (scaledFgBitmap != null ? scaledFgBitmap.getByteCount() : 0);
+    }
+
+    /**
+     * Releases the scaled layers of this view. They will be scaled again
+     * from the icon if the view is drawn.
+     */
+    void releaseScaledLayers() {
+        if (scaledInterner != null) {
+            scaledInterner.release(scaledBgBitmap);
+            scaledInterner.release(scaledFgBitmap);
+            scaledInterner = null;
+        }
+
+        scaledBgBitmap = null;
+        scaledFgBitmap = null;
+        bgPaint.setShader(null);
+        fgPaint.setShader(null);
+        isIconScaled = false;
+
+        // discard any layers that are still being prepared
+        layersRequest++;
+        isLayersPending = false;
+    }
+
+    /**
+     * Starts creating the scaled layers of the icon on a background thread,
+     * for the current size of the view. Until they are ready, a placeholder
+     * is drawn in the shape of the icon.
+     */
+    private void prepareScaledLayers() {
+        if (!isPrepared() || width <= 0 || height <= 0)
+            return;
+
+        final int request = ++layersRequest;
+        final AdaptiveIcon icon = this.icon;
+        final LayerInterner interner = this.interner;
+        final boolean isHardware = isHardwareLayers && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && isHardwareAccelerated();
+        final int width = this.width, height = this.height;
+        isLayersPending = true;
+
+        // held until the layers have been handed to the main thread, so that the icon's bitmaps
+        // are not recycled while they are being scaled if the view moves on to another icon
+        icon.acquire();
+        LAYER_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (request != layersRequest) {
+                    icon.release();
+                    return;
+                }
+
+                final Bitmap[] layers = createScaledLayers(icon, width, height);
+                if (interner != null) {
+                    layers[0] = interner.intern(layers[0]);
+                    layers[1] = interner.intern(layers[1]);
+                }
+
+                if (isHardware && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                    for (int i = 0; i < layers.length; i++) {
+                        if (layers[i] != null)
+                            layers[i] = interner != null ? interner.getHardwareBitmap(layers[i]) : ImageUtils.toHardwareBitmap(layers[i]);
+                    }
+                }
+
+                MAIN_HANDLER.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (request == layersRequest) {
+                            // keep drawing the placeholder until onIconReloaded is called
+                            if (layers[0] != null || layers[1] != null || !icon.isReloading()) {
+                                scaledInterner = interner;
+                                setScaledLayers(layers[0], layers[1]);
+                            }
+                        } else if (interner != null) {
+                            interner.release(layers[0]);
+                            interner.release(layers[1]);
+                        }
+
+                        icon.release();
+                    }
+                });
+            }
+        });
+    }
+
+    private void setScaledLayers(@Nullable Bitmap bgBitmap, @Nullable Bitmap fgBitmap) {
+        scaledBgBitmap = bgBitmap;
+        scaledFgBitmap = fgBitmap;
+        bgPaint.setShader(scaledBgBitmap != null ? new BitmapShader(scaledBgBitmap, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP) : null);
+        fgPaint.setShader(scaledBgBitmap != null && scaledFgBitmap != null ? new BitmapShader(scaledFgBitmap, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP) : null);
+        isIconScaled = true;
+        isLayersPending = false;
+        invalidate();
+    }
+
+    /**
+     * Scales the layers of an icon to fit a view of the given size. This can
+     * be called from any thread.
+     *
+     * @return the background and foreground layers, either of which may be null
+     */
+    private static Bitmap[] createScaledLayers(AdaptiveIcon icon, int width, int height) {
+        Bitmap bgBitmap = icon.getBgBitmap(), fgBitmap = icon.getFgBitmap();
+        Bitmap scaledBgBitmap = null, scaledFgBitmap = null;
+        if (bgBitmap != null) {
+            scaledBgBitmap = AdaptiveIconRenderer.getScaledBitmap(bgBitmap, icon.getScale(), width, height);
+            if (fgBitmap != null)
+                scaledFgBitmap = AdaptiveIconRenderer.getScaledBitmap(fgBitmap, icon.getScale(), width, height);
+            if (scaledFgBitmap != null)
+                scaledFgBitmap = AdaptiveIconRenderer.getBorderedBitmap(scaledFgBitmap);
+        } else if (fgBitmap != null)
+            scaledFgBitmap = ThumbnailUtils.extractThumbnail(fgBitmap, width, height);
+
+        return new Bitmap[]{scaledBgBitmap, scaledFgBitmap};
+    }
+
     private boolean isPrepared() {
         return icon != null && path != null && pathSize != null;
     }
 
-    private boolean isScaled(int width, int height) {
-        return scaledBgBitmap != null && (icon.getFgBitmap() == null || scaledFgBitmap != null) && scaledPath != null && this.width == width && this.height == height;
+    private void scalePath() {
+        pathMatrix.setScale((float) width / (pathSize.right - pathSize.left), (float) height / (pathSize.bottom - pathSize.top));
+        path.transform(pathMatrix, scaledPath);
+        isPathScaled = true;
+    }
+
+    /**
+     * Draws the icon from the atlas, if it can be obtained from it.
+     *
+     * @return whether the icon was drawn
+     */
+    private boolean drawAtlasEntry(Canvas canvas) {
+        if (atlasEntry == null) {
+            atlasEntry = atlas.acquire(icon, this);
+            if (atlasEntry == null)
+                return false;
+
+            // the atlas holds the rendered icon, so the view's own layers are no longer needed
+            releaseScaledLayers();
+        }
+
+        atlasBounds.set(0, 0, width, height);
+        canvas.save();
+        canvas.scale(2 - fgScale, 2 - fgScale, width / 2f, height / 2f);
+        canvas.drawBitmap(atlasEntry.getBitmap(), atlasEntry.getBounds(), atlasBounds, paint);
+        canvas.restore();
+        return true;
     }
 
-    private Path getScaledPath(Path origPath, Rect origRect, int width, int height) {
-        Rect newRect = new Rect(0, 0, width, height);
-        int origWidth = origRect.right - origRect.left;
-        int origHeight = origRect.bottom - origRect.top;
+    /**
+     * @return whether the icon can be drawn from its drawables, without scaling any bitmaps
+     */
+    private boolean canDrawDirectly() {
+        if (!isDirectDrawing || icon == null)
+            return false;
 
-        Matrix matrix = new Matrix();
-        matrix.postScale((float) (newRect.right - newRect.left) / origWidth, (float) (newRect.bottom - newRect.top) / origHeight);
+        Drawable fgDrawable = icon.peekFgDrawable(), bgDrawable = icon.peekBgDrawable();
+        if (fgDrawable == null || fgDrawable instanceof BitmapDrawable || bgDrawable instanceof BitmapDrawable)
+            return false;
 
-        Path newPath = new Path();
-        origPath.transform(matrix, newPath);
-        return newPath;
+        // drawables without a constant state cannot be copied, so they are drawn from scaled bitmaps instead
+        copyDrawables();
+        return directFgDrawable != null && (bgDrawable == null || directBgDrawable != null);
     }
 
-    private Bitmap getScaledBitmap(Bitmap bitmap, int width, int height) {
+    /**
+     * Creates the copies of the icon's drawables that are drawn directly. The
+     * originals may be rasterized by prepare() on another thread at the same
+     * time, and drawables are not thread safe, so they are never drawn here.
+     */
+    private void copyDrawables() {
+        if (directIcon == icon)
+            return;
+
+        directIcon = icon;
+        directFgDrawable = copyDrawable(icon.peekFgDrawable());
+        directBgDrawable = copyDrawable(icon.peekBgDrawable());
+    }
+
+    @Nullable
+    private Drawable copyDrawable(@Nullable Drawable drawable) {
+        Drawable.ConstantState state = drawable != null ? drawable.getConstantState() : null;
+        // mutate, so that the copy does not share any cached state with the original
+        return state != null ? state.newDrawable(getResources()).mutate() : null;
+    }
+
+    /**
+     * Draws the layers of the icon directly, applying the same positions and
+     * scales as the shader matrices of the scaled layers in onDraw.
+     */
+    private void drawDrawables(Canvas canvas, @Nullable Drawable bgDrawable, Drawable fgDrawable) {
+        float centerX = width / 2f, centerY = height / 2f;
+        if (bgDrawable == null) {
+            fgDrawable.setBounds(0, 0, width, height);
+            canvas.save();
+            canvas.scale(2 - fgScale, 2 - fgScale, centerX, centerY);
+            canvas.translate(width * offsetX * 0.188f, height * offsetY * 0.188f);
+            fgDrawable.draw(canvas);
+            canvas.restore();
+            return;
+        }
+
         double scale = icon.getScale();
+        int layerWidth = (int) ((2 - scale) * width), layerHeight = (int) ((2 - scale) * height);
+        drawableBounds.set((width - layerWidth) / 2, (height - layerHeight) / 2, (width + layerWidth) / 2, (height + layerHeight) / 2);
+
+        // the size of the scaled background bitmap, which getScaledBitmap pads to
+        // more than the view's size when the scale is greater than 1, so that
+        // the background is offset in the same cases as when it is scaled
+        int bgWidth = scale <= 1 ? layerWidth : width + (int) ((scale - 1) * width);
+        int bgHeight = scale <= 1 ? layerHeight : height + (int) ((scale - 1) * height);
+
+        float dx = 0, dy = 0;
+        if (bgWidth > width && bgHeight > height) {
+            dx = width * offsetX * 0.066f;
+            dy = height * offsetY * 0.066f;
+        }
+
+        canvas.save();
+        canvas.clipPath(scaledPath);
+        canvas.drawPath(scaledPath, paint);
+
+        canvas.save();
+        canvas.translate(dx, dy);
+        bgDrawable.setBounds(drawableBounds);
+        bgDrawable.draw(canvas);
+        canvas.restore();
+
+        canvas.scale(2 - fgScale, 2 - fgScale, centerX, centerY);
+        canvas.translate(width * offsetX * 0.188f, height * offsetY * 0.188f);
+        fgDrawable.setBounds(drawableBounds);
+        fgDrawable.draw(canvas);
+        canvas.restore();
+    }
+
+    /**
+     * Draws the current appearance of the view into a bitmap, to fade it out
+     * once the next icon is drawn.
+     */
+    private void captureFadeBitmap() {
+        if (!isPrepared() || width <= 0 || height <= 0)
+            return;
+
+        if (isIconScaled && (ImageUtils.isHardware(scaledBgBitmap) || ImageUtils.isHardware(scaledFgBitmap))) {
+            // hardware layers cannot be drawn on a software canvas, so the icon is recorded and rendered by the GPU
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.P)
+                return;
+
+            Picture picture = new Picture();
+            boolean isDrawn = drawIcon(picture.beginRecording(width, height));
+            picture.endRecording();
+            if (isDrawn) {
+                fadeBitmap = Bitmap.createBitmap(picture);
+                fadePaint.setAlpha(255);
+            }
+            return;
+        }
 
-        if (scale <= 1)
-            return ThumbnailUtils.extractThumbnail(bitmap, (int) ((2 - scale) * width), (int) ((2 - scale) * height));
-        else if (bitmap.getWidth() > 1 && bitmap.getHeight() > 1) {
-            int widthMargin = (int) ((scale - 1) * width);
-            int heightMargin = (int) ((scale - 1) * height);
-
-            if (widthMargin > 0 && heightMargin > 0) {
-                Bitmap source = ThumbnailUtils.extractThumbnail(bitmap, (int) ((2 - scale) * width), (int) ((2 - scale) * height));
-                int dWidth = width + widthMargin;
-                int dHeight = height + heightMargin;
-                bitmap = Bitmap.createBitmap(dWidth, dHeight, bitmap.getConfig());
-                Canvas canvas = new Canvas(bitmap);
-                canvas.drawBitmap(source, (dWidth - source.getWidth()) / 2, (dHeight - source.getHeight()) / 2, new Paint());
-                return bitmap;
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        if (drawIcon(canvas)) {
+            fadeBitmap = bitmap;
+            fadePaint.setAlpha(255);
+        } else bitmap.recycle();
+    }
+
+    /**
+     * Draws the previous icon over the current one, starting to fade it out
+     * once the current one has been drawn.
+     */
+    private void drawFadeBitmap(Canvas canvas, boolean isIconDrawn) {
+        canvas.drawBitmap(fadeBitmap, 0, 0, fadePaint);
+        if (!isIconDrawn || fadeAnimator != null)
+            return;
+
+        fadeAnimator = ValueAnimator.ofInt(255, 0);
+        fadeAnimator.setDuration(CROSS_FADE_DURATION);
+        fadeAnimator.addUpdateListener(new ValueAnimator.AnimatorUpdateListener() {
+            @Override
+            public void onAnimationUpdate(ValueAnimator valueAnimator) {
+                fadePaint.setAlpha((int) valueAnimator.getAnimatedValue());
+                if (valueAnimator.getAnimatedFraction() >= 1)
+                    cancelCrossFade();
+
+                invalidate();
             }
-        } else if (bitmap.getWidth() > 0 && bitmap.getHeight() > 0)
-            return ThumbnailUtils.extractThumbnail(bitmap, width, height);
+        });
+        fadeAnimator.start();
+    }
+
+    private void cancelCrossFade() {
+        if (fadeAnimator != null) {
+            ValueAnimator animator = fadeAnimator;
+            fadeAnimator = null;
+            animator.cancel();
+        }
+
+        if (fadeBitmap != null) {
+            fadeBitmap.recycle();
+            fadeBitmap = null;
+        }
+    }
 
-        return null;
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        if (w == width && h == height)
+            return;
+
+        // start scaling the layers as soon as the view is measured, rather than when it is first drawn
+        width = w;
+        height = h;
+        isPathScaled = false;
+        releaseScaledLayers();
+        cancelCrossFade();
+        if (atlas == null && !canDrawDirectly())
+            prepareScaledLayers();
     }
 
     @Override
     protected void onDraw(Canvas canvas) {
         if (isPrepared()) {
-            if (!isScaled(canvas.getWidth(), canvas.getHeight())) {
+            if (width != canvas.getWidth() || height != canvas.getHeight()) {
                 width = canvas.getWidth();
                 height = canvas.getHeight();
-                scaledPath = getScaledPath(path, pathSize, width, height);
-                if (icon.getBgBitmap() != null) {
-                    scaledBgBitmap = getScaledBitmap(icon.getBgBitmap(), width, height);
-                    scaledFgBitmap = getScaledBitmap(icon.getFgBitmap(), width, height);
-                } else if (icon.getFgBitmap() != null)
-                    scaledFgBitmap = ThumbnailUtils.extractThumbnail(icon.getFgBitmap(), width, height);
-
+                isPathScaled = false;
+                releaseScaledLayers();
             }
 
-            if (scaledBgBitmap != null) {
-                canvas.drawPath(scaledPath, paint);
-                canvas.clipPath(scaledPath);
-
-                float dx = width * offsetX * 0.066f;
-                float dy = height * offsetY * 0.066f;
-                if (scaledBgBitmap.getWidth() > width && scaledBgBitmap.getHeight() > height)
-                    canvas.scale(2 - ((fgScale + 1) / 2), 2 - ((fgScale + 1) / 2), width / 2, height / 2);
-                else {
-                    dx = 0;
-                    dy = 0;
-                }
+            boolean isDrawn = drawIcon(canvas);
+            if (fadeBitmap != null)
+                drawFadeBitmap(canvas, isDrawn);
+        }
+    }
 
-                float marginX = (scaledBgBitmap.getWidth() - width) / 2;
-                float marginY = (scaledBgBitmap.getHeight() - height) / 2;
-                canvas.drawBitmap(scaledBgBitmap, dx - marginX, dy - marginY, paint);
-            }
+    /**
+     * Draws the icon, or a placeholder in its shape if its scaled layers
+     * are not ready yet.
+     *
+     * @return whether the icon itself was drawn
+     */
+    private boolean drawIcon(Canvas canvas) {
+        if (atlas != null && drawAtlasEntry(canvas))
+            return true;
+
+        if (!isPathScaled)
+            scalePath();
+
+        if (canDrawDirectly()) {
+            drawDrawables(canvas, directBgDrawable, directFgDrawable);
+            return true;
+        }
 
-            if (scaledFgBitmap != null) {
-                canvas.scale(2 - fgScale, 2 - fgScale, width / 2, height / 2);
-                float dx = ((width - scaledFgBitmap.getWidth()) / 2) + (width * offsetX * 0.188f);
-                float dy = ((height - scaledFgBitmap.getHeight()) / 2) + (height * offsetY * 0.188f);
-                canvas.drawBitmap(scaledFgBitmap, dx, dy, paint);
-                canvas.scale(fgScale + 1, fgScale + 1, width / 2, height / 2);
+        if (!isIconScaled) {
+            if (!isLayersPending)
+                prepareScaledLayers();
+
+            canvas.drawPath(scaledPath, paint);
+            return false;
+        }
+
+        // the layers are positioned by their shader matrices and filled through the
+        // shape, so offsets and scales never require clipping or re-scaling anything;
+        // the press animation only scales the foreground, so the background's matrix
+        // stays the same on every frame of it
+        float centerX = width / 2f, centerY = height / 2f;
+        if (scaledBgBitmap != null) {
+            float dx = 0, dy = 0;
+            if (scaledBgBitmap.getWidth() > width && scaledBgBitmap.getHeight() > height) {
+                dx = width * offsetX * 0.066f;
+                dy = height * offsetY * 0.066f;
             }
+
+            bgMatrix.setTranslate(dx - (scaledBgBitmap.getWidth() - width) / 2f, dy - (scaledBgBitmap.getHeight() - height) / 2f);
+            bgPaint.getShader().setLocalMatrix(bgMatrix);
+
+            canvas.drawPath(scaledPath, paint);
+            canvas.drawPath(scaledPath, bgPaint);
         }
+
+        if (scaledFgBitmap != null) {
+            fgMatrix.setTranslate(((width - scaledFgBitmap.getWidth()) / 2f) + (width * offsetX * 0.188f),
+                    ((height - scaledFgBitmap.getHeight()) / 2f) + (height * offsetY * 0.188f));
+            fgMatrix.postScale(2 - fgScale, 2 - fgScale, centerX, centerY);
+
+            if (fgPaint.getShader() != null) {
+                fgPaint.getShader().setLocalMatrix(fgMatrix);
+                canvas.drawPath(scaledPath, fgPaint);
+            } else canvas.drawBitmap(scaledFgBitmap, fgMatrix, paint);
+        }
+
+        return true;
     }
 
     @Override
     public boolean onTouch(View view, MotionEvent event) {
         switch (event.getAction()) {
             case MotionEvent.ACTION_UP:
-                if (animator != null && animator.isStarted())
+                if (animator == null) {
+                    animator = ValueAnimator.ofFloat(0, 1);
+                    animator.setDuration(500);
+                    animator.setInterpolator(new DecelerateInterpolator());
+                    animator.addUpdateListener(new ValueAnimator.AnimatorUpdateListener() {
+                        @Override
+                        public void onAnimationUpdate(ValueAnimator valueAnimator) {
+                            // equivalent to ofFloat(startScale, 1.2f, 1), without boxing each frame
+                            float fraction = valueAnimator.getAnimatedFraction();
+                            if (fraction < 0.5f)
+                                fgScale = animatorStartScale + (1.2f - animatorStartScale) * fraction * 2;
+                            else fgScale = 1.2f - 0.2f * (fraction - 0.5f) * 2;
+
+                            invalidate();
+                        }
+                    });
+                } else if (animator.isStarted())
                     animator.cancel();
 
-                animator = ValueAnimator.ofFloat(fgScale, 1.2f, 1);
-                animator.setDuration(500);
-                animator.setInterpolator(new DecelerateInterpolator());
-                animator.addUpdateListener(new ValueAnimator.AnimatorUpdateListener() {
-                    @Override
-                    public void onAnimationUpdate(ValueAnimator valueAnimator) {
-                        fgScale = (float) valueAnimator.getAnimatedValue();
-                        postInvalidate();
-                    }
-                });
+                animatorStartScale = fgScale;
                 animator.start();
 
                 performClick();
@@ -0,0 +1,104 @@
+package james.adaptiveicon;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A small, thread safe pool of mutable ARGB_8888 bitmaps, used to avoid
+ * allocating a new bitmap every time an icon is rendered at the same size.
+ */
+public class BitmapPool {
+
+    private final int maxSize;
+    private final List<Bitmap> bitmaps = new ArrayList<>();
+
+    /**
+     * @param maxSize the maximum amount of unused bitmaps to keep in the pool
+     */
+    public BitmapPool(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Obtains a bitmap of the given size from the pool, or creates one if
+     * there isn't one available. The contents of a pooled bitmap are undefined.
+     *
+     * @param width  the width of the bitmap
+     * @param height the height of the bitmap
+     * @return a mutable bitmap of the given size
+     */
+    public Bitmap acquire(int width, int height) {
+        synchronized (bitmaps) {
+            for (int i = bitmaps.size() - 1; i >= 0; i--) {
+                Bitmap bitmap = bitmaps.get(i);
+                if (bitmap.getWidth() == width && bitmap.getHeight() == height)
+                    return bitmaps.remove(i);
+            }
+        }
+
+        return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Returns a bitmap to the pool, or recycles it if the pool is full. The
+     * bitmap must not be used by the caller after it has been released.
+     *
+     * @param bitmap a bitmap previously obtained from acquire(int, int)
+     */
+    public void release(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable() || bitmap.getConfig() != Bitmap.Config.ARGB_8888)
+            return;
+
+        synchronized (bitmaps) {
+            // releasing a pooled bitmap twice must not recycle it while it is still in the pool
+            if (bitmaps.contains(bitmap))
+                return;
+
+            if (bitmaps.size() < maxSize) {
+                bitmaps.add(bitmap);
+                return;
+            }
+        }
+
+        bitmap.recycle();
+    }
+
+    /**
+     * Recycles all of the unused bitmaps in the pool.
+     */
+    public void clear() {
+        synchronized (bitmaps) {
+            for (Bitmap bitmap : bitmaps) {
+                bitmap.recycle();
+            }
+
+            bitmaps.clear();
+        }
+    }
+
+    /**
+     * @return the amount of bytes used by the unused bitmaps in the pool
+     */
+    public long getByteCount() {
+        long bytes = 0;
+        synchronized (bitmaps) {
+            for (Bitmap bitmap : bitmaps) {
+                bytes += bitmap.getByteCount();
+            }
+        }
+
+        return bytes;
+    }
+
+    /**
+     * @return the amount of unused bitmaps in the pool
+     */
+    public int size() {
+        synchronized (bitmaps) {
+            return bitmaps.size();
+        }
+    }
+
+}
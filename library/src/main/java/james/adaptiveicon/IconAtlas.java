@@ -0,0 +1,334 @@
+package james.adaptiveicon;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Packs the rendered icons of a single size and shape into a few large "page"
+ * bitmaps, so that a grid of AdaptiveIconViews can draw sub-rectangles of the
+ * same bitmaps instead of each holding (and uploading) its own scaled layers.
+ *
+ * Icons that are no longer displayed by any view stay in the atlas until their
+ * cell is needed for another icon, in least recently used order. Call trim() to
+ * drop them all and repack the remaining icons into as few pages as possible.
+ *
+ * This class is not thread safe; it must only be used on the main thread.
+ */
+public class IconAtlas {
+
+    private final AdaptiveIconRenderer renderer;
+    private final int cellSize;
+    private final int columns;
+    private final int maxPages;
+
+    private final List<Page> pages = new ArrayList<>();
+    private final Map<AdaptiveIcon, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // icons that were removed, which must not be rendered into the atlas again
+    private final Set<AdaptiveIcon> removed = Collections.newSetFromMap(new WeakHashMap<AdaptiveIcon, Boolean>());
+
+    private final Canvas canvas = new Canvas();
+    private final Paint copyPaint = new Paint();
+
+    /**
+     * Creates an atlas with pages of 8x8 icons, using at most 4 pages.
+     *
+     * @param renderer the renderer used to draw icons into the atlas
+     * @param cellSize the width and height of each icon, in pixels
+     */
+    public IconAtlas(AdaptiveIconRenderer renderer, int cellSize) {
+        this(renderer, cellSize, 8, 4);
+    }
+
+    /**
+     * @param renderer the renderer used to draw icons into the atlas
+     * @param cellSize the width and height of each icon, in pixels
+     * @param columns  the amount of icons in each row and column of a page
+     * @param maxPages the maximum amount of pages to allocate
+     */
+    public IconAtlas(AdaptiveIconRenderer renderer, int cellSize, int columns, int maxPages) {
+        this.renderer = renderer;
+        this.cellSize = cellSize;
+        this.columns = columns;
+        this.maxPages = maxPages;
+        copyPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+    }
+
+    /**
+     * @return the width and height of each icon in the atlas, in pixels
+     */
+    public int getCellSize() {
+        return cellSize;
+    }
+
+    /**
+     * @return the amount of page bitmaps currently allocated
+     */
+    public int getPageCount() {
+        return pages.size();
+    }
+
+    /**
+     * @return the amount of bytes used by the page bitmaps of the atlas
+     */
+    public long getByteCount() {
+        long bytes = 0;
+        for (Page page : pages) {
+            bytes += page.bitmap.getByteCount();
+        }
+
+        return bytes;
+    }
+
+    /**
+     * @return the amount of icons currently stored in the atlas
+     */
+    public int getIconCount() {
+        return entries.size();
+    }
+
+    /**
+     * Obtains the entry of an icon for a view to draw, rendering it into the
+     * atlas if it is not already there.
+     *
+     * @param icon the icon to obtain
+     * @param view the view that will draw the entry
+     * @return the entry of the icon, or null if the atlas is full or the icon was removed or recycled
+     */
+    @Nullable
+    Entry acquire(AdaptiveIcon icon, AdaptiveIconView view) {
+        Entry entry = entries.get(icon);
+        if (entry == null) {
+            if (icon.isRecycled() || removed.contains(icon))
+                return null;
+
+            // an evicted icon has no bitmaps until it has been reloaded
+            if (icon.getFgBitmap() == null && icon.getBgBitmap() == null)
+                return null;
+
+            entry = obtainEntry();
+            if (entry == null)
+                return null;
+
+            renderer.render(icon, entry.page.bitmap, entry.bounds, 0, 0);
+            entries.put(icon, entry);
+        }
+
+        if (!entry.views.contains(view))
+            entry.views.add(view);
+
+        return entry;
+    }
+
+    /**
+     * Marks an entry as no longer being drawn by a view.
+     *
+     * @param entry the entry that was obtained from acquire
+     * @param view  the view that was drawing it
+     */
+    void release(Entry entry, AdaptiveIconView view) {
+        entry.views.remove(view);
+    }
+
+    /**
+     * Removes an icon from the atlas, for example after its bitmaps have been
+     * recycled. Any views drawing it will render it themselves instead, and it
+     * will not be added to the atlas again.
+     *
+     * @param icon the icon to remove
+     */
+    public void remove(AdaptiveIcon icon) {
+        removed.add(icon);
+        Entry entry = entries.remove(icon);
+        if (entry != null)
+            removeEntry(entry);
+    }
+
+    /**
+     * Removes all of the icons that are not currently displayed, and moves
+     * the remaining icons into as few pages as possible, dropping the rest.
+     */
+    public void trim() {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.views.isEmpty()) {
+                iterator.remove();
+                entry.page.used[entry.cell] = false;
+                entry.page.count--;
+            }
+        }
+
+        int cells = columns * columns;
+        int requiredPages = (entries.size() + cells - 1) / cells;
+        for (Entry entry : entries.values()) {
+            if (pages.indexOf(entry.page) >= requiredPages)
+                moveEntry(entry, requiredPages);
+        }
+
+        // every remaining entry has been moved out of the dropped pages, so nothing draws them anymore
+        while (pages.size() > requiredPages) {
+            pages.remove(pages.size() - 1).bitmap.recycle();
+        }
+    }
+
+    /**
+     * Removes every icon from the atlas and releases all of its pages.
+     */
+    public void clear() {
+        for (Entry entry : new ArrayList<>(entries.values())) {
+            removeEntry(entry);
+        }
+
+        entries.clear();
+        for (Page page : pages) {
+            page.bitmap.recycle();
+        }
+
+        pages.clear();
+    }
+
+    @Nullable
+    private Entry obtainEntry() {
+        for (Page page : pages) {
+            int cell = page.getFreeCell();
+            if (cell >= 0)
+                return new Entry(page, cell);
+        }
+
+        if (pages.size() < maxPages) {
+            Page page = new Page();
+            pages.add(page);
+            return new Entry(page, page.getFreeCell());
+        }
+
+        // entries are in access order, so the first unused one is the least recently used
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.views.isEmpty()) {
+                iterator.remove();
+                entry.page.used[entry.cell] = false;
+                entry.page.count--;
+                return new Entry(entry.page, entry.cell);
+            }
+        }
+
+        return null;
+    }
+
+    private void removeEntry(Entry entry) {
+        entry.page.used[entry.cell] = false;
+        entry.page.count--;
+        for (AdaptiveIconView view : new ArrayList<>(entry.views)) {
+            view.onAtlasEntryRemoved(entry);
+        }
+
+        entry.views.clear();
+    }
+
+    /**
+     * Copies an entry into a free cell of one of the first pages.
+     */
+    private void moveEntry(Entry entry, int pageCount) {
+        for (int i = 0; i < pageCount; i++) {
+            Page page = pages.get(i);
+            int cell = page.getFreeCell();
+            if (cell >= 0) {
+                Rect bounds = page.getBounds(cell);
+                canvas.setBitmap(page.bitmap);
+                canvas.drawBitmap(entry.page.bitmap, entry.bounds, bounds, copyPaint);
+                canvas.setBitmap(null);
+
+                entry.page.used[entry.cell] = false;
+                entry.page.count--;
+                page.used[cell] = true;
+                page.count++;
+
+                entry.page = page;
+                entry.cell = cell;
+                entry.bounds.set(bounds);
+                for (AdaptiveIconView view : entry.views) {
+                    view.invalidate();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * The location of a single icon in the atlas.
+     */
+    public static class Entry {
+
+        private Page page;
+        private int cell;
+        private final Rect bounds;
+        private final List<AdaptiveIconView> views = new ArrayList<>();
+
+        private Entry(Page page, int cell) {
+            this.page = page;
+            this.cell = cell;
+            page.used[cell] = true;
+            page.count++;
+            bounds = page.getBounds(cell);
+        }
+
+        /**
+         * @return the page bitmap that contains the icon
+         */
+        public Bitmap getBitmap() {
+            return page.bitmap;
+        }
+
+        /**
+         * @return the area of the page bitmap that contains the icon
+         */
+        public Rect getBounds() {
+            return bounds;
+        }
+    }
+
+    private class Page {
+
+        private final Bitmap bitmap;
+        private final boolean[] used;
+        private int count;
+
+        private Page() {
+            bitmap = Bitmap.createBitmap(columns * cellSize, columns * cellSize, Bitmap.Config.ARGB_8888);
+            used = new boolean[columns * columns];
+        }
+
+        private int getFreeCell() {
+            if (count < used.length) {
+                for (int i = 0; i < used.length; i++) {
+                    if (!used[i])
+                        return i;
+                }
+            }
+
+            return -1;
+        }
+
+        private Rect getBounds(int cell) {
+            int left = (cell % columns) * cellSize;
+            int top = (cell / columns) * cellSize;
+            return new Rect(left, top, left + cellSize, top + cellSize);
+        }
+    }
+
+}
@@ -0,0 +1,288 @@
+package james.adaptiveicon;
+
+import android.content.ComponentCallbacks2;
+import android.content.pm.ResolveInfo;
+import android.content.res.Configuration;
+import android.os.Handler;
+import android.os.Looper;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Keeps track of the memory used by icons, views, atlases and bitmap pools,
+ * and releases it when it exceeds a budget or when the system is running low
+ * on memory. Register it with Context.registerComponentCallbacks to receive
+ * onTrimMemory events.
+ *
+ * Memory is released in tiers: first the bitmap pools and unused atlas icons,
+ * then the scaled layers of views, and finally the source bitmaps of the icons
+ * themselves. Released icon bitmaps are recreated from the icon's drawables, or
+ * reloaded using the governor's loader, when they are next requested.
+ *
+ * Everything is tracked with weak references, so nothing needs to be removed
+ * from the governor. Tracking methods may be called from any thread, but the
+ * budget is only enforced on the main thread.
+ */
+public class IconMemoryGovernor implements ComponentCallbacks2 {
+
+    private final Set<AdaptiveIcon> icons = Collections.newSetFromMap(new WeakHashMap<AdaptiveIcon, Boolean>());
+    private final Set<AdaptiveIconView> views = Collections.newSetFromMap(new WeakHashMap<AdaptiveIconView, Boolean>());
+    private final Set<IconAtlas> atlases = Collections.newSetFromMap(new WeakHashMap<IconAtlas, Boolean>());
+    private final Set<BitmapPool> pools = Collections.newSetFromMap(new WeakHashMap<BitmapPool, Boolean>());
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable enforceRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (IconMemoryGovernor.this) {
+                isEnforceScheduled = false;
+            }
+
+            enforceBudget();
+        }
+    };
+
+    private long budget;
+    @Nullable
+    private AdaptiveIcon.Loader loader;
+    private boolean isEnforceScheduled;
+
+    /**
+     * Creates a governor with a budget of an eighth of the maximum heap size.
+     */
+    public IconMemoryGovernor() {
+        this(Runtime.getRuntime().maxMemory() / 8);
+    }
+
+    /**
+     * @param budget the maximum amount of bytes to hold in tracked bitmaps
+     */
+    public IconMemoryGovernor(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Sets a loader to reload icons with once their bitmaps have been released.
+     * Without one, only icons that still hold their drawables can be released.
+     *
+     * @param loader the loader to reload icons with
+     * @return the current governor, for method chaining
+     */
+    public IconMemoryGovernor withLoader(@Nullable AdaptiveIcon.Loader loader) {
+        this.loader = loader;
+        return this;
+    }
+
+    /**
+     * @param budget the maximum amount of bytes to hold in tracked bitmaps
+     */
+    public void setBudget(long budget) {
+        this.budget = budget;
+        scheduleEnforce();
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * @param icon an icon to track the memory of
+     */
+    public void track(AdaptiveIcon icon) {
+        synchronized (this) {
+            icons.add(icon);
+        }
+        scheduleEnforce();
+    }
+
+    /**
+     * Stops tracking an icon, for example once it has been replaced and
+     * recycled. Icons that are no longer referenced are untracked anyway.
+     *
+     * @param icon an icon that was passed to track(AdaptiveIcon)
+     */
+    public synchronized void untrack(AdaptiveIcon icon) {
+        icons.remove(icon);
+    }
+
+    /**
+     * @param view a view to track the memory of the scaled layers of
+     */
+    public void track(AdaptiveIconView view) {
+        synchronized (this) {
+            views.add(view);
+        }
+        scheduleEnforce();
+    }
+
+    /**
+     * @param atlas an atlas to track the memory of
+     */
+    public void track(IconAtlas atlas) {
+        synchronized (this) {
+            atlases.add(atlas);
+        }
+        scheduleEnforce();
+    }
+
+    /**
+     * @param pool a bitmap pool to track the memory of
+     */
+    public void track(BitmapPool pool) {
+        synchronized (this) {
+            pools.add(pool);
+        }
+        scheduleEnforce();
+    }
+
+    /**
+     * @return the total amount of bytes held by everything that is tracked
+     */
+    public long getByteCount() {
+        long bytes = 0;
+        for (AdaptiveIcon icon : copy(icons)) {
+            bytes += icon.getByteCount();
+        }
+        for (AdaptiveIconView view : copy(views)) {
+            bytes += view.getScaledByteCount();
+        }
+        for (IconAtlas atlas : copy(atlases)) {
+            bytes += atlas.getByteCount();
+        }
+        for (BitmapPool pool : copy(pools)) {
+            bytes += pool.getByteCount();
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Releases memory, one tier at a time, until the tracked bitmaps fit in
+     * the budget. This must be called on the main thread.
+     */
+    public void enforceBudget() {
+        if (getByteCount() <= budget)
+            return;
+
+        clearPools();
+        trimAtlases();
+        if (getByteCount() <= budget)
+            return;
+
+        releaseViews(false);
+        if (getByteCount() <= budget)
+            return;
+
+        for (AdaptiveIcon icon : copy(icons)) {
+            if (icon.evict(this) && getByteCount() <= budget)
+                return;
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_RUNNING_MODERATE)
+            clearPools();
+        if (level >= TRIM_MEMORY_RUNNING_LOW)
+            trimAtlases();
+
+        if (level >= TRIM_MEMORY_UI_HIDDEN)
+            releaseViews(true);
+        else if (level >= TRIM_MEMORY_RUNNING_LOW)
+            releaseViews(false);
+
+        if (level >= TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            for (AdaptiveIcon icon : copy(icons)) {
+                icon.evict(this);
+            }
+        }
+
+        enforceBudget();
+    }
+
+    @Override
+    public void onLowMemory() {
+        onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+    boolean canReload() {
+        return loader != null;
+    }
+
+    /**
+     * Reloads an evicted icon on a background thread, and scales the layers
+     * of the views displaying it again once it has its bitmaps.
+     *
+     * @param icon the evicted icon
+     * @param info the application that the icon was loaded for
+     */
+    void reload(final AdaptiveIcon icon, final ResolveInfo info) {
+        final AdaptiveIcon.Loader loader = this.loader;
+        AdaptiveIconView.LAYER_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                AdaptiveIcon reloaded = loader != null ? loader.reload(info) : null;
+                if (reloaded != null)
+                    reloaded.prepare();
+
+                if (icon.onReloaded(reloaded)) {
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            for (AdaptiveIconView view : copy(views)) {
+                                view.onIconReloaded(icon);
+                            }
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    private void clearPools() {
+        for (BitmapPool pool : copy(pools)) {
+            pool.clear();
+        }
+    }
+
+    private void trimAtlases() {
+        for (IconAtlas atlas : copy(atlases)) {
+            atlas.trim();
+        }
+    }
+
+    /**
+     * @param includeAttached whether to release the layers of views that are attached to a window
+     */
+    private void releaseViews(boolean includeAttached) {
+        for (AdaptiveIconView view : copy(views)) {
+            if (includeAttached || view.getWindowToken() == null)
+                view.releaseScaledLayers();
+        }
+    }
+
+    private void scheduleEnforce() {
+        synchronized (this) {
+            if (isEnforceScheduled)
+                return;
+
+            isEnforceScheduled = true;
+        }
+
+        handler.post(enforceRunnable);
+    }
+
+    private synchronized <T> List<T> copy(Set<T> set) {
+        return new ArrayList<>(set);
+    }
+
+}
@@ -0,0 +1,392 @@
+package james.adaptiveicon;
+
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.graphics.Bitmap;
+import android.util.Log;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import james.adaptiveicon.utils.PackageUtils;
+
+/**
+ * A single file containing the layers of many loaded AdaptiveIcons, used to
+ * display them immediately on the next start of an application without
+ * loading or decoding anything.
+ *
+ * The file starts with an index of every icon (its component, package version,
+ * scale, and the dimensions and file offsets of its layers), followed by the raw
+ * ARGB_8888 pixels of each layer. Opening a snapshot memory-maps the file and
+ * reads the index; the pixels of an icon are only copied into bitmaps when it is
+ * requested. Snapshots store pixels in the native format of the device, so they
+ * should only be read on the device that wrote them.
+ */
+public class IconSnapshot {
+
+    private static final int MAGIC = 0x41494353;
+    private static final int FORMAT_VERSION = 1;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final MappedByteBuffer buffer;
+    private final Map<String, IndexEntry> index;
+
+    private IconSnapshot(MappedByteBuffer buffer, Map<String, IndexEntry> index) {
+        this.buffer = buffer;
+        this.index = index;
+    }
+
+    /**
+     * Memory-maps a snapshot file and reads its index.
+     *
+     * @param file the file written by a Writer
+     * @return the opened snapshot
+     * @throws IOException if the file cannot be read or is not a valid snapshot
+     */
+    public static IconSnapshot open(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < 12 || buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION)
+                throw new IOException("Not a valid icon snapshot: " + file);
+
+            int count = buffer.getInt();
+            Map<String, IndexEntry> index = new HashMap<>(count * 2);
+            try {
+                for (int i = 0; i < count; i++) {
+                    byte[] component = new byte[buffer.getShort() & 0xFFFF];
+                    buffer.get(component);
+
+                    IndexEntry entry = new IndexEntry(buffer.getLong(), buffer.getDouble(), new Layer(buffer), new Layer(buffer));
+                    if (!entry.fg.isValid(buffer.capacity()) || !entry.bg.isValid(buffer.capacity()))
+                        throw new IOException("Icon snapshot is truncated: " + file);
+
+                    index.put(new String(component, UTF_8), entry);
+                }
+            } catch (RuntimeException e) {
+                throw new IOException("Icon snapshot index is corrupt: " + file);
+            }
+
+            return new IconSnapshot(buffer, index);
+        } finally {
+            // the mapping stays valid after the file is closed
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * @return the amount of icons in the snapshot
+     */
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * Obtains the icon of an activity from the snapshot, if it is there and
+     * was written for the currently installed version of its package.
+     *
+     * @param packageManager the package manager to obtain the package version from
+     * @param info           the activity to obtain the icon of
+     * @return the icon, or null if it is not in the snapshot or is out of date
+     */
+    @Nullable
+    public AdaptiveIcon get(PackageManager packageManager, ResolveInfo info) {
+        return get(PackageUtils.getComponent(info.activityInfo), PackageUtils.getVersionCode(packageManager, info.activityInfo.packageName));
+    }
+
+    /**
+     * Obtains an icon from the snapshot. This method is thread safe.
+     *
+     * @param component the component that the icon was written with
+     * @param version   the package version that the icon must have been written with
+     * @return the icon, or null if it is not in the snapshot or is out of date
+     */
+    @Nullable
+    public AdaptiveIcon get(String component, long version) {
+        IndexEntry entry = index.get(component);
+        if (entry == null || entry.version != version)
+            return null;
+
+        return new AdaptiveIcon(entry.fg.toBitmap(buffer), entry.bg.toBitmap(buffer), entry.scale);
+    }
+
+    private static class IndexEntry {
+
+        private final long version;
+        private final double scale;
+        private final Layer fg, bg;
+
+        private IndexEntry(long version, double scale, Layer fg, Layer bg) {
+            this.version = version;
+            this.scale = scale;
+            this.fg = fg;
+            this.bg = bg;
+        }
+    }
+
+    /**
+     * The dimensions and position of a layer's pixels in the file. A
+     * layer with a width of 0 is absent.
+     */
+    private static class Layer {
+
+        private final int width, height;
+        private final long offset;
+
+        private Layer(int width, int height, long offset) {
+            this.width = width;
+            this.height = height;
+            this.offset = offset;
+        }
+
+        private Layer(ByteBuffer buffer) {
+            this(buffer.getInt(), buffer.getInt(), buffer.getLong());
+        }
+
+        private void write(ByteBuffer buffer) {
+            buffer.putInt(width).putInt(height).putLong(offset);
+        }
+
+        private long getByteCount() {
+            return (long) width * height * 4;
+        }
+
+        private boolean isValid(long fileSize) {
+            return width == 0 || (width > 0 && height > 0 && offset >= 0 && offset + getByteCount() <= fileSize);
+        }
+
+        @Nullable
+        private Bitmap toBitmap(ByteBuffer buffer) {
+            if (width == 0)
+                return null;
+
+            // duplicate the buffer so that icons can be read from several threads at once
+            ByteBuffer pixels = buffer.duplicate();
+            pixels.limit((int) (offset + getByteCount()));
+            pixels.position((int) offset);
+
+            Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            bitmap.copyPixelsFromBuffer(pixels);
+            return bitmap;
+        }
+    }
+
+    /**
+     * Collects loaded icons and writes them to a snapshot file. Icons can be
+     * added from any thread, including while an earlier snapshot is being
+     * written, which only contains the icons that were added before it started.
+     */
+    public static class Writer {
+
+        // snapshots are written one at a time, as they are written to the same temporary file
+        private static final Object WRITE_LOCK = new Object();
+
+        private final List<String> components = new ArrayList<>();
+        private final List<Long> versions = new ArrayList<>();
+        private final List<AdaptiveIcon> icons = new ArrayList<>();
+
+        /**
+         * Adds the icon of an activity to the snapshot.
+         *
+         * @param packageManager the package manager to obtain the package version from
+         * @param info           the activity that the icon belongs to
+         * @param icon           the loaded icon
+         * @return the current Writer, for method chaining
+         */
+        public Writer add(PackageManager packageManager, ResolveInfo info, AdaptiveIcon icon) {
+            return add(PackageUtils.getComponent(info.activityInfo), PackageUtils.getVersionCode(packageManager, info.activityInfo.packageName), icon);
+        }
+
+        /**
+         * Adds an icon to the snapshot, replacing any icon that was already
+         * added with the same name.
+         *
+         * @param component a unique name to obtain the icon with
+         * @param version   the version of the icon, usually the version of its package
+         * @param icon      the loaded icon
+         * @return the current Writer, for method chaining
+         */
+        public synchronized Writer add(String component, long version, AdaptiveIcon icon) {
+            if (icon != null && icon.getFgBitmap() != null) {
+                // an icon that replaces one added earlier, such as an upgraded legacy icon, takes its place
+                int index = components.indexOf(component);
+                if (index >= 0) {
+                    versions.set(index, version);
+                    icons.set(index, icon);
+                } else {
+                    components.add(component);
+                    versions.add(version);
+                    icons.add(icon);
+                }
+            }
+
+            return this;
+        }
+
+        /**
+         * Writes the snapshot, replacing the file only once it has been
+         * completely written.
+         *
+         * @param file the file to write to
+         * @throws IOException if the file cannot be written
+         */
+        public void write(File file) throws IOException {
+            Writer copy = copy();
+            try {
+                copy.writeCopy(file);
+            } finally {
+                copy.release();
+            }
+        }
+
+        /**
+         * Copies the icons that have been added so far, acquiring each of them
+         * so that their bitmaps cannot be recycled while they are written.
+         * Icons that have already been recycled are left out.
+         */
+        private synchronized Writer copy() {
+            Writer copy = new Writer();
+            for (int i = 0; i < icons.size(); i++) {
+                AdaptiveIcon icon = icons.get(i).acquire();
+                if (icon.isRecycled()) {
+                    icon.release();
+                    continue;
+                }
+
+                copy.components.add(components.get(i));
+                copy.versions.add(versions.get(i));
+                copy.icons.add(icon);
+            }
+
+            return copy;
+        }
+
+        private void release() {
+            for (AdaptiveIcon icon : icons) {
+                icon.release();
+            }
+        }
+
+        /**
+         * Writes the icons of a copy, which is only used by the calling thread.
+         */
+        private void writeCopy(File file) throws IOException {
+            synchronized (WRITE_LOCK) {
+                writeIcons(file);
+            }
+        }
+
+        private void writeIcons(File file) throws IOException {
+            List<Bitmap> layers = new ArrayList<>();
+            List<byte[]> names = new ArrayList<>();
+            int indexSize = 12;
+            for (int i = 0; i < icons.size(); i++) {
+                byte[] name = components.get(i).getBytes(UTF_8);
+                names.add(name);
+                layers.add(getPixelBitmap(icons.get(i).getFgBitmap()));
+                layers.add(getPixelBitmap(icons.get(i).getBgBitmap()));
+                indexSize += 2 + name.length + 8 + 8 + 16 + 16;
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(indexSize);
+            header.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(icons.size());
+
+            long offset = indexSize;
+            int maxLayerSize = 0;
+            for (int i = 0; i < icons.size(); i++) {
+                header.putShort((short) names.get(i).length).put(names.get(i));
+                header.putLong(versions.get(i)).putDouble(icons.get(i).getScale());
+                for (int j = i * 2; j < (i * 2) + 2; j++) {
+                    Bitmap layer = layers.get(j);
+                    Layer entry = layer != null ? new Layer(layer.getWidth(), layer.getHeight(), offset) : new Layer(0, 0, 0);
+                    entry.write(header);
+                    offset += entry.getByteCount();
+                    maxLayerSize = Math.max(maxLayerSize, (int) entry.getByteCount());
+                }
+            }
+
+            File tempFile = new File(file.getPath() + ".tmp");
+            FileOutputStream outputStream = new FileOutputStream(tempFile);
+            try {
+                FileChannel channel = outputStream.getChannel();
+                header.flip();
+                while (header.hasRemaining())
+                    channel.write(header);
+
+                ByteBuffer pixels = ByteBuffer.allocateDirect(maxLayerSize);
+                for (Bitmap layer : layers) {
+                    if (layer == null)
+                        continue;
+
+                    pixels.clear();
+                    layer.copyPixelsToBuffer(pixels);
+                    pixels.flip();
+                    while (pixels.hasRemaining())
+                        channel.write(pixels);
+                }
+
+                outputStream.getFD().sync();
+            } finally {
+                outputStream.close();
+            }
+
+            if (!tempFile.renameTo(file)) {
+                tempFile.delete();
+                throw new IOException("Could not replace icon snapshot: " + file);
+            }
+        }
+
+        /**
+         * Writes the snapshot on a background thread, logging any errors. The
+         * snapshot contains the icons that were added before this is called.
+         *
+         * @param file the file to write to
+         * @return the started thread
+         */
+        public Thread writeAsync(final File file) {
+            final Writer copy = copy();
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        copy.writeCopy(file);
+                    } catch (IOException e) {
+                        if (BuildConfig.DEBUG)
+                            Log.e("AdaptiveIcon", "Failed to write icon snapshot: " + e.getMessage());
+                    } finally {
+                        copy.release();
+                    }
+                }
+            };
+            thread.setPriority(Thread.MIN_PRIORITY);
+            thread.start();
+            return thread;
+        }
+
+        /**
+         * Returns a bitmap with the same pixels in the ARGB_8888 format that
+         * snapshots are stored in.
+         */
+        @Nullable
+        private static Bitmap getPixelBitmap(@Nullable Bitmap bitmap) {
+            if (bitmap == null || bitmap.getWidth() <= 0 || bitmap.getHeight() <= 0)
+                return null;
+            else if (bitmap.getConfig() != Bitmap.Config.ARGB_8888)
+                return bitmap.copy(Bitmap.Config.ARGB_8888, false);
+            else return bitmap;
+        }
+    }
+
+}
@@ -0,0 +1,321 @@
+package james.adaptiveicon;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import james.adaptiveicon.utils.ImageUtils;
+
+/**
+ * Shares bitmaps with identical contents between icons and views. Many apps
+ * use the same layers - plain white or brand colored backgrounds, or the
+ * default ic_launcher_background - and without interning, each icon and view
+ * holds its own copy of them.
+ *
+ * Bitmaps are compared by a hash of their pixels, and confirmed with
+ * Bitmap.sameAs, so interning a bitmap costs a pass over its pixels. Each
+ * interned bitmap is reference counted, and must be released by everything
+ * that interned it. A shared bitmap is only recycled by the last user to
+ * release it if its owner handed it over; bitmaps that still belong to a
+ * drawable are left to the drawable. This class is thread safe.
+ */
+public class LayerInterner {
+
+    private final Map<Long, List<Entry>> entries = new HashMap<>();
+    private final Map<Bitmap, Entry> bitmaps = new IdentityHashMap<>();
+
+    /**
+     * Obtains the shared bitmap with the same contents as the given one, or
+     * shares the given bitmap if there isn't one yet. The caller owns the given
+     * bitmap, so once nothing uses it, it may be recycled.
+     *
+     * @param bitmap the bitmap to intern
+     * @return the shared bitmap, which must be passed to release(Bitmap) once it is no longer used
+     */
+    public Bitmap intern(Bitmap bitmap) {
+        return intern(bitmap, true);
+    }
+
+    /**
+     * Obtains the shared bitmap with the same contents as the given one, or
+     * shares the given bitmap if there isn't one yet. If a shared bitmap is
+     * returned, the given bitmap is no longer needed, but it is not recycled,
+     * since it may still be used by a drawable.
+     *
+     * @param bitmap  the bitmap to intern
+     * @param isOwned false if the bitmap still belongs to something else, such
+     *                as a BitmapDrawable, so that it is never recycled when it
+     *                is released
+     * @return the shared bitmap, which must be passed to release(Bitmap) once it is no longer used
+     */
+    public Bitmap intern(Bitmap bitmap, boolean isOwned) {
+        if (bitmap == null || bitmap.isRecycled())
+            return bitmap;
+
+        synchronized (this) {
+            Entry entry = bitmaps.get(bitmap);
+            if (entry != null) {
+                if (bitmap == entry.hardwareBitmap)
+                    entry.hardwareReferences++;
+                else {
+                    entry.references++;
+                    entry.isOwned &= isOwned;
+                }
+
+                return bitmap;
+            }
+        }
+
+        long hash = ImageUtils.getContentHash(bitmap);
+        List<Entry> hardwareCandidates = null;
+        synchronized (this) {
+            List<Entry> candidates = entries.get(hash);
+            if (candidates != null) {
+                for (Entry entry : candidates) {
+                    if (entry.bitmap == null)
+                        hardwareCandidates = add(hardwareCandidates, entry);
+                    else if (entry.bitmap.getConfig() == bitmap.getConfig() && entry.bitmap.sameAs(bitmap)) {
+                        entry.references++;
+                        return entry.bitmap;
+                    }
+                }
+            }
+        }
+
+        // entries that are only used as hardware bitmaps are compared through a software copy, outside
+        // of the lock, as it has to be read back from graphics memory
+        Entry match = null;
+        if (hardwareCandidates != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && bitmap.getConfig() != Bitmap.Config.HARDWARE) {
+            for (Entry entry : hardwareCandidates) {
+                Bitmap copy = entry.hardwareBitmap.copy(bitmap.getConfig(), false);
+                boolean isSame = copy != null && copy.sameAs(bitmap);
+                if (copy != null)
+                    copy.recycle();
+
+                if (isSame) {
+                    match = entry;
+                    break;
+                }
+            }
+        }
+
+        synchronized (this) {
+            List<Entry> candidates = entries.get(hash);
+            if (candidates == null) {
+                candidates = new ArrayList<>(1);
+                entries.put(hash, candidates);
+            }
+
+            if (match != null && candidates.contains(match)) {
+                match.references++;
+                if (match.bitmap == null) {
+                    // the given bitmap has the same contents, so it takes the place of the dropped one
+                    match.bitmap = bitmap;
+                    match.isOwned = isOwned;
+                    bitmaps.put(bitmap, match);
+                }
+
+                return match.bitmap;
+            }
+
+            Entry entry = new Entry(hash, bitmap, isOwned);
+            candidates.add(entry);
+            bitmaps.put(bitmap, entry);
+            return bitmap;
+        }
+    }
+
+    private static List<Entry> add(@Nullable List<Entry> list, Entry entry) {
+        if (list == null)
+            list = new ArrayList<>(1);
+
+        list.add(entry);
+        return list;
+    }
+
+    /**
+     * Obtains a HARDWARE copy of a bitmap obtained from intern(Bitmap), which
+     * is shared in the same way as the bitmap itself. The reference to the
+     * bitmap is passed on to the copy, which must be released instead of it.
+     * Once nothing uses the software bitmap, the interner drops it rather
+     * than keeping both copies, and compares newly interned bitmaps with a
+     * temporary software copy of the hardware bitmap.
+     *
+     * @param bitmap a bitmap obtained from intern(Bitmap)
+     * @return the shared hardware copy of the bitmap, or a new one if it was not interned
+     */
+    @RequiresApi(Build.VERSION_CODES.O)
+    public Bitmap getHardwareBitmap(Bitmap bitmap) {
+        synchronized (this) {
+            Entry entry = bitmap != null ? bitmaps.get(bitmap) : null;
+            if (entry != null && entry.hardwareBitmap != null)
+                return useHardwareBitmap(entry, bitmap);
+        }
+
+        Bitmap hardwareBitmap = ImageUtils.toHardwareBitmap(bitmap);
+        synchronized (this) {
+            Entry entry = bitmaps.get(bitmap);
+            if (entry == null || hardwareBitmap == bitmap)
+                return hardwareBitmap;
+            if (entry.hardwareBitmap == null) {
+                entry.hardwareBitmap = hardwareBitmap;
+                bitmaps.put(hardwareBitmap, entry);
+            }
+
+            return useHardwareBitmap(entry, bitmap);
+        }
+    }
+
+    /**
+     * Moves a reference from the software bitmap of an entry to its hardware
+     * copy, dropping the software bitmap if nothing else uses it.
+     */
+    private Bitmap useHardwareBitmap(Entry entry, Bitmap bitmap) {
+        if (bitmap == entry.bitmap) {
+            entry.references--;
+            entry.hardwareReferences++;
+            if (entry.references == 0)
+                dropBitmap(entry);
+        }
+
+        return entry.hardwareBitmap;
+    }
+
+    /**
+     * Drops the software bitmap of an entry that is only used through its
+     * hardware copy. It is not recycled, as whoever interned it may still
+     * hold it - for example, a scaled layer may be the icon's own bitmap.
+     */
+    private void dropBitmap(Entry entry) {
+        bitmaps.remove(entry.bitmap);
+        entry.bitmap = null;
+    }
+
+    /**
+     * Releases a reference to a bitmap obtained from intern(Bitmap), or its
+     * hardware copy.
+     *
+     * @param bitmap the bitmap to release
+     * @return true if nothing else uses the bitmap, and it was not interned
+     * on behalf of a drawable, so the caller may recycle it
+     */
+    public synchronized boolean release(@Nullable Bitmap bitmap) {
+        Entry entry = bitmap != null ? bitmaps.get(bitmap) : null;
+        if (entry == null)
+            return true;
+
+        boolean isHardware = bitmap == entry.hardwareBitmap;
+        if (isHardware)
+            entry.hardwareReferences--;
+        else if (--entry.references == 0 && entry.hardwareReferences > 0) {
+            // the hardware copy is still used, so the software bitmap is no longer needed
+            boolean isOwned = entry.isOwned;
+            dropBitmap(entry);
+            return isOwned;
+        }
+
+        if (entry.references > 0 || entry.hardwareReferences > 0)
+            return false;
+
+        if (entry.bitmap != null)
+            bitmaps.remove(entry.bitmap);
+        if (entry.hardwareBitmap != null)
+            bitmaps.remove(entry.hardwareBitmap);
+
+        List<Entry> candidates = entries.get(entry.hash);
+        candidates.remove(entry);
+        if (candidates.isEmpty())
+            entries.remove(entry.hash);
+
+        // the hardware copy was created by the interner, so it can always be recycled
+        return isHardware || entry.isOwned;
+    }
+
+    /**
+     * @return the amount of bytes that would be used by the extra copies of each shared bitmap without interning
+     */
+    public synchronized long getSavedByteCount() {
+        long bytes = 0;
+        for (List<Entry> candidates : entries.values()) {
+            for (Entry entry : candidates) {
+                bytes += (long) (entry.references + entry.hardwareReferences - 1) * entry.getByteCount();
+            }
+        }
+
+        return bytes;
+    }
+
+    /**
+     * @return the amount of bytes used by the shared bitmaps
+     */
+    public synchronized long getByteCount() {
+        long bytes = 0;
+        for (List<Entry> candidates : entries.values()) {
+            for (Entry entry : candidates) {
+                bytes += entry.getByteCount();
+            }
+        }
+
+        return bytes;
+    }
+
+    /**
+     * @return the amount of shared bitmaps
+     */
+    public synchronized int size() {
+        int size = 0;
+        for (List<Entry> candidates : entries.values()) {
+            size += candidates.size();
+        }
+
+        return size;
+    }
+
+    @Override
+    public synchronized String toString() {
+        int references = 0;
+        for (List<Entry> candidates : entries.values()) {
+            for (Entry entry : candidates) {
+                references += entry.references + entry.hardwareReferences;
+            }
+        }
+
+        return size() + " bitmaps shared by " + references + " layers, " + getSavedByteCount() + " bytes saved";
+    }
+
+    private static class Entry {
+
+        private final long hash;
+        // null once only the hardware copy is used
+        @Nullable
+        private Bitmap bitmap;
+        @Nullable
+        private Bitmap hardwareBitmap;
+        // the references to the software bitmap and to the hardware copy
+        private int references = 1;
+        private int hardwareReferences;
+        // whether the bitmap may be recycled once it has been released by everything
+        private boolean isOwned;
+
+        private Entry(long hash, Bitmap bitmap, boolean isOwned) {
+            this.hash = hash;
+            this.bitmap = bitmap;
+            this.isOwned = isOwned;
+        }
+
+        /**
+         * @return the amount of bytes used by one copy of the bitmap
+         */
+        private int getByteCount() {
+            return bitmap != null ? bitmap.getByteCount() : hardwareBitmap.getByteCount();
+        }
+    }
+
+}
@@ -0,0 +1,176 @@
+package james.adaptiveicon;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Collects timings from an AdaptiveIcon.Loader: the total time of each load,
+ * and the time spent in each stage of the pipeline (reading the package version,
+ * the snapshot, the adaptive icon, and each fallback), along with how often
+ * each stage produced the icon. Pass the same instance to loaders on different
+ * commits or devices, and compare their toString() reports.
+ *
+ * This class is thread safe.
+ */
+public class LoadStats {
+
+    public static final String STAGE_VERSION = "version";
+    public static final String STAGE_SNAPSHOT = "snapshot";
+    public static final String STAGE_ADAPTIVE = "adaptive";
+    // loads that missed their deadline and returned the legacy icon, and the full loads that finished after them
+    public static final String STAGE_DEADLINE = "deadline";
+    public static final String STAGE_UPGRADE = "upgrade";
+    // the legacy icons loaded as the first phase of progressive loads
+    public static final String STAGE_PREVIEW = "preview";
+
+    private final Map<String, Stage> stages = new LinkedHashMap<>();
+    private final Stage total = new Stage("total");
+
+    /**
+     * Records the time spent in a stage of a load.
+     *
+     * @param stage     the name of the stage; fallbacks use their class name
+     * @param nanos     the time spent in the stage, in nanoseconds
+     * @param isSuccess whether the stage produced the icon
+     */
+    synchronized void record(String stage, long nanos, boolean isSuccess) {
+        Stage entry = stages.get(stage);
+        if (entry == null) {
+            entry = new Stage(stage);
+            stages.put(stage, entry);
+        }
+
+        entry.add(nanos, isSuccess);
+    }
+
+    /**
+     * Records the total time of a load.
+     *
+     * @param nanos     the time taken to load the icon, in nanoseconds
+     * @param isSuccess whether an icon was obtained
+     */
+    synchronized void recordLoad(long nanos, boolean isSuccess) {
+        total.add(nanos, isSuccess);
+    }
+
+    /**
+     * @return the totals of every load
+     */
+    public synchronized Stage getTotal() {
+        return new Stage(total);
+    }
+
+    /**
+     * @return a copy of the stats of each stage, in the order that they were first recorded
+     */
+    public synchronized Map<String, Stage> getStages() {
+        Map<String, Stage> copy = new LinkedHashMap<>();
+        for (Stage stage : stages.values()) {
+            copy.put(stage.name, new Stage(stage));
+        }
+
+        return copy;
+    }
+
+    /**
+     * Discards everything that has been recorded.
+     */
+    public synchronized void reset() {
+        stages.clear();
+        total.count = 0;
+        total.successes = 0;
+        total.nanos = 0;
+        total.maxNanos = 0;
+    }
+
+    /**
+     * @return a table of the count, success count, average and maximum time of the loads and each stage
+     */
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder(String.format(Locale.US, "%-24s %8s %8s %10s %10s", "stage", "count", "success", "avg (us)", "max (us)"));
+        builder.append('\n').append(total);
+        for (Stage stage : stages.values()) {
+            builder.append('\n').append(stage);
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * The timings of a single stage.
+     */
+    public static class Stage {
+
+        private final String name;
+        private int count, successes;
+        private long nanos, maxNanos;
+
+        private Stage(String name) {
+            this.name = name;
+        }
+
+        private Stage(Stage stage) {
+            name = stage.name;
+            count = stage.count;
+            successes = stage.successes;
+            nanos = stage.nanos;
+            maxNanos = stage.maxNanos;
+        }
+
+        private void add(long nanos, boolean isSuccess) {
+            count++;
+            if (isSuccess)
+                successes++;
+
+            this.nanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the amount of times that the stage was run
+         */
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * @return the amount of times that the stage produced the icon
+         */
+        public int getSuccessCount() {
+            return successes;
+        }
+
+        /**
+         * @return the total time spent in the stage, in nanoseconds
+         */
+        public long getTotalNanos() {
+            return nanos;
+        }
+
+        /**
+         * @return the average time spent in the stage, in nanoseconds
+         */
+        public long getAverageNanos() {
+            return count > 0 ? nanos / count : 0;
+        }
+
+        /**
+         * @return the longest time spent in the stage, in nanoseconds
+         */
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%-24s %8d %8d %10.1f %10.1f", name, count, successes, getAverageNanos() / 1000f, maxNanos / 1000f);
+        }
+    }
+
+}
@@ -0,0 +1,113 @@
+package james.adaptiveicon;
+
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Applies scroll-based parallax offsets to many AdaptiveIconViews at once. Scroll
+ * deltas are collected as they arrive and applied to every registered view once
+ * per frame, instead of updating each view on every scroll event. Once scrolling
+ * stops, the offsets ease back to zero over the next few frames.
+ *
+ * This class is not thread safe; it must be created and used on the main thread.
+ */
+public class ParallaxController implements Choreographer.FrameCallback {
+
+    private static final float SETTLE_FACTOR = 0.5f;
+    private static final float SETTLE_THRESHOLD = 0.01f;
+
+    private final List<AdaptiveIconView> views = new ArrayList<>();
+    private final Choreographer choreographer;
+    private final float distance;
+
+    private float scrollX, scrollY;
+    private float offsetX, offsetY;
+    private boolean isFrameScheduled;
+
+    /**
+     * @param distance the distance, in pixels, that must be scrolled in a single frame
+     *                 for the icons to reach their maximum offset
+     */
+    public ParallaxController(float distance) {
+        this.distance = distance;
+        choreographer = Choreographer.getInstance();
+    }
+
+    /**
+     * Registers a view to receive offsets from this controller. This does not
+     * need to be called for views that have been passed to
+     * AdaptiveIconView.setParallaxController(ParallaxController), as they will
+     * register themselves when they are attached to a window.
+     *
+     * @param view the view to register
+     */
+    public void register(AdaptiveIconView view) {
+        if (!views.contains(view)) {
+            views.add(view);
+            view.applyOffset(offsetX, offsetY);
+        }
+    }
+
+    /**
+     * Unregisters a view from this controller, resetting its offset.
+     *
+     * @param view the view to unregister
+     */
+    public void unregister(AdaptiveIconView view) {
+        if (views.remove(view))
+            view.applyOffset(0, 0);
+    }
+
+    /**
+     * Adds a scroll delta to be applied on the next frame. This can be called
+     * directly from a RecyclerView.OnScrollListener's onScrolled method.
+     *
+     * @param dx the horizontal distance scrolled, in pixels
+     * @param dy the vertical distance scrolled, in pixels
+     */
+    public void onScrolled(int dx, int dy) {
+        scrollX += dx;
+        scrollY += dy;
+        scheduleFrame();
+    }
+
+    /**
+     * @return the number of views currently registered with this controller
+     */
+    public int getViewCount() {
+        return views.size();
+    }
+
+    private void scheduleFrame() {
+        if (!isFrameScheduled) {
+            isFrameScheduled = true;
+            choreographer.postFrameCallback(this);
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        isFrameScheduled = false;
+
+        float targetX = Math.max(-1, Math.min(1, scrollX / distance));
+        float targetY = Math.max(-1, Math.min(1, scrollY / distance));
+        scrollX = 0;
+        scrollY = 0;
+
+        offsetX += (targetX - offsetX) * SETTLE_FACTOR;
+        offsetY += (targetY - offsetY) * SETTLE_FACTOR;
+        if (targetX == 0 && Math.abs(offsetX) < SETTLE_THRESHOLD)
+            offsetX = 0;
+        if (targetY == 0 && Math.abs(offsetY) < SETTLE_THRESHOLD)
+            offsetY = 0;
+
+        for (int i = 0; i < views.size(); i++) {
+            views.get(i).applyOffset(offsetX, offsetY);
+        }
+
+        if (offsetX != 0 || offsetY != 0)
+            scheduleFrame();
+    }
+}
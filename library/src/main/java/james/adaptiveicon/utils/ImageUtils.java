@@ -2,13 +2,14 @@ package james.adaptiveicon.utils;
 
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
-import android.graphics.Color;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
+import android.os.Build;
 import androidx.annotation.ColorInt;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
 
-import java.util.HashMap;
-import java.util.Map;
+import james.adaptiveicon.core.PixelUtils;
 
 public class ImageUtils {
 
@@ -42,6 +43,41 @@ public class ImageUtils {
         return bitmap;
     }
 
+    /**
+     * Converts a drawable to a bitmap that is no larger than the given size,
+     * scaling it down if necessary.
+     *
+     * @param drawable a drawable
+     * @param maxSize  the maximum width and height of the bitmap, or 0 for no limit
+     * @return a bitmap
+     */
+    public static Bitmap drawableToBitmap(Drawable drawable, int maxSize) {
+        if (drawable == null || maxSize <= 0)
+            return drawableToBitmap(drawable);
+
+        if (drawable instanceof BitmapDrawable && ((BitmapDrawable) drawable).getBitmap() != null) {
+            Bitmap bitmap = ((BitmapDrawable) drawable).getBitmap();
+            int width = bitmap.getWidth(), height = bitmap.getHeight();
+            if (width <= maxSize && height <= maxSize)
+                return bitmap;
+
+            float scale = (float) maxSize / Math.max(width, height);
+            return Bitmap.createScaledBitmap(bitmap, Math.max(1, Math.round(width * scale)), Math.max(1, Math.round(height * scale)), true);
+        }
+
+        int width = drawable.getIntrinsicWidth(), height = drawable.getIntrinsicHeight();
+        if (width <= 0 || height <= 0)
+            return drawableToBitmap(drawable);
+
+        float scale = Math.min(1, (float) maxSize / Math.max(width, height));
+        Bitmap bitmap = Bitmap.createBitmap(Math.max(1, Math.round(width * scale)), Math.max(1, Math.round(height * scale)), Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        drawable.setBounds(0, 0, canvas.getWidth(), canvas.getHeight());
+        drawable.draw(canvas);
+
+        return bitmap;
+    }
+
     /**
      * Iterates through each pixel in a Bitmap and determines
      * whether it has any transparent parts.
@@ -50,14 +86,7 @@ public class ImageUtils {
      * @return true if any part of the bitmap is transparent
      */
     public static boolean hasTransparency(Bitmap bitmap) {
-        for (int y = 0; y < bitmap.getWidth(); y++) {
-            for (int x = 0; x < bitmap.getHeight(); x++) {
-                if (Color.alpha(bitmap.getPixel(x, y)) < 255)
-                    return true;
-            }
-        }
-
-        return false;
+        return PixelUtils.hasTransparency(getPixels(bitmap));
     }
 
     /**
@@ -69,15 +98,10 @@ public class ImageUtils {
      */
     public static Bitmap removeShadow(Bitmap bitmap) {
         if (!bitmap.isMutable())
-            bitmap = bitmap.copy(bitmap.getConfig(), true);
-
-        int[] pixels = new int[bitmap.getWidth() * bitmap.getHeight()];
-        bitmap.getPixels(pixels, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
-        for (int i = 0; i < pixels.length; i++) {
-            if (Color.alpha(pixels[i]) < 255)
-                pixels[i] = Color.TRANSPARENT;
-        }
+            bitmap = bitmap.copy(isHardware(bitmap) ? Bitmap.Config.ARGB_8888 : bitmap.getConfig(), true);
 
+        int[] pixels = getPixels(bitmap);
+        PixelUtils.removeShadow(pixels);
         bitmap.setPixels(pixels, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
         return bitmap;
     }
@@ -90,27 +114,59 @@ public class ImageUtils {
      */
     @ColorInt
     public static int getDominantColor(Bitmap bitmap) {
-        Map<Integer, Integer> colors = new HashMap<>();
-
-        for (int y = 0; y < bitmap.getWidth(); y++) {
-            for (int x = 0; x < bitmap.getHeight(); x++) {
-                if (Color.alpha(bitmap.getPixel(x, y)) == 255) {
-                    int color = bitmap.getPixel(x, y);
-                    colors.put(color, (colors.containsKey(color) ? colors.get(color) : 0) + 1);
-                }
-            }
-        }
+        return PixelUtils.getDominantColor(getPixels(bitmap));
+    }
+
+    /**
+     * Hashes the pixels of a bitmap, for finding bitmaps with identical contents.
+     *
+     * @param bitmap the bitmap to hash
+     * @return a hash of the size and pixels of the bitmap
+     */
+    public static long getContentHash(Bitmap bitmap) {
+        return (PixelUtils.hash(getPixels(bitmap)) * 31 + bitmap.getWidth()) * 31 + bitmap.getHeight();
+    }
+
+    /**
+     * Copies a bitmap into graphics memory, for bitmaps that are only drawn
+     * once they have been created. The copy cannot be drawn on a software
+     * canvas, and its pixels can only be read from a software copy.
+     *
+     * @param bitmap the bitmap to copy
+     * @return a HARDWARE copy of the bitmap, or the bitmap itself if it cannot be copied
+     */
+    @RequiresApi(Build.VERSION_CODES.O)
+    public static Bitmap toHardwareBitmap(Bitmap bitmap) {
+        if (bitmap == null || isHardware(bitmap))
+            return bitmap;
 
-        int color = Color.TRANSPARENT;
-        int occurrences = 0;
-        for (Integer key : colors.keySet()) {
-            if (colors.get(key) > occurrences) {
-                occurrences = colors.get(key);
-                color = key;
-            }
+        Bitmap copy = bitmap.copy(Bitmap.Config.HARDWARE, false);
+        return copy != null ? copy : bitmap;
+    }
+
+    /**
+     * @return true if the bitmap is stored in graphics memory, so its pixels cannot be accessed directly
+     */
+    public static boolean isHardware(@Nullable Bitmap bitmap) {
+        return bitmap != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && bitmap.getConfig() == Bitmap.Config.HARDWARE;
+    }
+
+    /**
+     * Copies the pixels of a bitmap into an array, in a single call instead
+     * of one call to getPixel for each pixel. Hardware bitmaps are read from
+     * a software copy.
+     */
+    private static int[] getPixels(Bitmap bitmap) {
+        if (isHardware(bitmap)) {
+            Bitmap copy = bitmap.copy(Bitmap.Config.ARGB_8888, false);
+            int[] pixels = getPixels(copy);
+            copy.recycle();
+            return pixels;
         }
 
-        return color;
+        int[] pixels = new int[bitmap.getWidth() * bitmap.getHeight()];
+        bitmap.getPixels(pixels, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
+        return pixels;
     }
 
 }
@@ -0,0 +1,40 @@
+package james.adaptiveicon.utils;
+
+import android.content.pm.ActivityInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.Build;
+
+public class PackageUtils {
+
+    /**
+     * Returns the version code of an installed package, used to determine
+     * whether anything cached about its icon is still valid.
+     *
+     * @param packageManager the package manager to query
+     * @param packageName    the name of the package
+     * @return the version code of the package, or -1 if it is not installed
+     */
+    public static long getVersionCode(PackageManager packageManager, String packageName) {
+        try {
+            PackageInfo info = packageManager.getPackageInfo(packageName, 0);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P)
+                return info.getLongVersionCode();
+            else return info.versionCode;
+        } catch (PackageManager.NameNotFoundException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns a string that identifies an activity, in the same format as
+     * ComponentName.flattenToString().
+     *
+     * @param info the activity
+     * @return the package and class name of the activity, separated by a slash
+     */
+    public static String getComponent(ActivityInfo info) {
+        return info.packageName + "/" + info.name;
+    }
+
+}
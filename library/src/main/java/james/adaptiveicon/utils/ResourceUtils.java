@@ -1,20 +1,66 @@
 package james.adaptiveicon.utils;
 
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
 import android.content.res.AssetManager;
 import android.content.res.Configuration;
 import android.content.res.Resources;
+import android.graphics.drawable.Drawable;
 import android.os.Build;
 import android.util.DisplayMetrics;
+import androidx.annotation.Nullable;
+import androidx.core.content.res.ResourcesCompat;
 
+import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class ResourceUtils {
 
+    private static final int[] DENSITIES = new int[]{
+            DisplayMetrics.DENSITY_LOW,
+            DisplayMetrics.DENSITY_MEDIUM,
+            DisplayMetrics.DENSITY_HIGH,
+            DisplayMetrics.DENSITY_XHIGH,
+            DisplayMetrics.DENSITY_XXHIGH,
+            DisplayMetrics.DENSITY_XXXHIGH
+    };
+
+    // the amount of applications to keep isolated Resources for
+    private static final int MAX_ISOLATED_RESOURCES = 16;
+
+    // isolated Resources by package name, least recently used first; guarded by itself
+    private static final Map<String, IsolatedResources> ISOLATED_RESOURCES = new LinkedHashMap<String, IsolatedResources>(MAX_ISOLATED_RESOURCES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, IsolatedResources> eldest) {
+            if (size() > MAX_ISOLATED_RESOURCES) {
+                eldest.getValue().discard();
+                return true;
+            }
+
+            return false;
+        }
+    };
+
+    // the isolated Resources that have been returned and not released yet; guarded by ISOLATED_RESOURCES
+    private static final Map<Resources, IsolatedResources> ISOLATED_RESOURCES_IN_USE = new HashMap<>();
+
+    private static Method setConfiguration;
+    private static Method addAssetPath;
+    private static Constructor<AssetManager> assetManagerConstructor;
+
     /**
      * Sets a fake configuration to the passed Resources to allow access to resources
      * accessible to a sdk level. Used to backport adaptive icon support to different
      * devices.
      *
+     * This modifies the AssetManager of the Resources, which the system may share
+     * with other Resources of the same application, and is never undone. Prefer
+     * getResourcesForSdk, which applies the configuration to a private copy.
+     *
      * @param resources the resources to set the configuration to
      * @param sdk       the sdk level to become accessible
      * @throws NoSuchMethodException     if something is wrong
@@ -35,9 +81,7 @@ public class ResourceUtils {
         Configuration configuration = resources.getConfiguration();
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-            AssetManager.class.getDeclaredMethod("setConfiguration", int.class, int.class, String.class, int.class, int.class,
-                    int.class, int.class, int.class, int.class, int.class, int.class, int.class, int.class, int.class,
-                    int.class, int.class, int.class, int.class)
+            getSetConfigurationMethod()
                     .invoke(resources.getAssets(), configuration.mcc, configuration.mnc,
                             Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ? configuration.locale.toLanguageTag() : null,
                             configuration.orientation, configuration.touchscreen, configuration.densityDpi,
@@ -46,9 +90,7 @@ public class ResourceUtils {
                             configuration.screenWidthDp, configuration.screenHeightDp, configuration.screenLayout,
                             configuration.uiMode, configuration.colorMode, sdk);
         } else {
-            AssetManager.class.getDeclaredMethod("setConfiguration", int.class, int.class, String.class, int.class, int.class,
-                    int.class, int.class, int.class, int.class, int.class, int.class, int.class, int.class, int.class,
-                    int.class, int.class, int.class)
+            getSetConfigurationMethod()
                     .invoke(resources.getAssets(), configuration.mcc, configuration.mnc,
                             Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ? configuration.locale.toLanguageTag() : null,
                             configuration.orientation, configuration.touchscreen, configuration.densityDpi,
@@ -59,4 +101,220 @@ public class ResourceUtils {
         }
     }
 
+    /**
+     * Returns Resources for an application that resolve resources as if the
+     * device was running at least the given sdk level. If it is older than that,
+     * the Resources are backed by a private AssetManager, so they can be used on
+     * any thread without affecting the Resources that the system shares with
+     * everything else in the process. The private Resources of the most recently
+     * used applications are kept until the application is updated or the
+     * configuration changes. Pass the Resources to releaseResourcesForSdk once
+     * they are no longer used, so that their AssetManager can be closed.
+     *
+     * @param packageManager the package manager to obtain the application's resources from
+     * @param info           the application
+     * @param sdk            the sdk level to become accessible
+     * @return the resources of the application
+     * @throws PackageManager.NameNotFoundException if the application is not installed
+     * @throws NoSuchMethodException                if something is wrong
+     * @throws IllegalAccessException               if something is very wrong
+     * @throws InvocationTargetException            if something is really very extremely wrong
+     * @throws InstantiationException               if an AssetManager cannot be created
+     */
+    public static Resources getResourcesForSdk(PackageManager packageManager, ApplicationInfo info, int sdk) throws PackageManager.NameNotFoundException, NoSuchMethodException, IllegalAccessException, InvocationTargetException, InstantiationException {
+        Resources resources = packageManager.getResourcesForApplication(info);
+        if (Build.VERSION.SDK_INT >= sdk)
+            return resources;
+
+        synchronized (ISOLATED_RESOURCES) {
+            IsolatedResources isolated = ISOLATED_RESOURCES.get(info.packageName);
+            if (isolated != null && isolated.matches(info, sdk, resources))
+                return isolated.use();
+        }
+
+        // the AssetManager is created outside of the lock, as it opens the APK
+        IsolatedResources isolated = new IsolatedResources(info.sourceDir, sdk, resources.getConfiguration(), createResourcesForSdk(info, resources, sdk));
+        synchronized (ISOLATED_RESOURCES) {
+            IsolatedResources current = ISOLATED_RESOURCES.get(info.packageName);
+            if (current != null && current.matches(info, sdk, resources)) {
+                // another thread created them first
+                isolated.discard();
+                return current.use();
+            }
+
+            if (current != null)
+                current.discard();
+
+            ISOLATED_RESOURCES.put(info.packageName, isolated);
+            return isolated.use();
+        }
+    }
+
+    /**
+     * Marks Resources returned by getResourcesForSdk as no longer being used
+     * by the caller. If they have been replaced or dropped from the cache in
+     * the meantime, and nothing else uses them, their AssetManager is closed.
+     *
+     * @param resources the resources returned by getResourcesForSdk, or null
+     */
+    public static void releaseResourcesForSdk(@Nullable Resources resources) {
+        if (resources == null)
+            return;
+
+        synchronized (ISOLATED_RESOURCES) {
+            IsolatedResources isolated = ISOLATED_RESOURCES_IN_USE.get(resources);
+            if (isolated != null)
+                isolated.release();
+        }
+    }
+
+    private static Resources createResourcesForSdk(ApplicationInfo info, Resources resources, int sdk) throws NoSuchMethodException, IllegalAccessException, InvocationTargetException, InstantiationException {
+        AssetManager assets = getAssetManagerConstructor().newInstance();
+        Method addAssetPath = getAddAssetPathMethod();
+        addAssetPath.invoke(assets, info.sourceDir);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && info.splitSourceDirs != null) {
+            for (String splitSourceDir : info.splitSourceDirs) {
+                addAssetPath.invoke(assets, splitSourceDir);
+            }
+        }
+
+        Resources isolated = new Resources(assets, resources.getDisplayMetrics(), new Configuration(resources.getConfiguration()));
+        setFakeConfig(isolated, sdk);
+        return isolated;
+    }
+
+    /**
+     * The reflective handles are resolved once per process, the first time that
+     * they are needed, rather than being looked up for every icon.
+     */
+    private static synchronized Method getSetConfigurationMethod() throws NoSuchMethodException {
+        if (setConfiguration == null) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                setConfiguration = AssetManager.class.getDeclaredMethod("setConfiguration", int.class, int.class, String.class, int.class, int.class,
+                        int.class, int.class, int.class, int.class, int.class, int.class, int.class, int.class, int.class,
+                        int.class, int.class, int.class, int.class);
+            } else {
+                setConfiguration = AssetManager.class.getDeclaredMethod("setConfiguration", int.class, int.class, String.class, int.class, int.class,
+                        int.class, int.class, int.class, int.class, int.class, int.class, int.class, int.class, int.class,
+                        int.class, int.class, int.class);
+            }
+            setConfiguration.setAccessible(true);
+        }
+
+        return setConfiguration;
+    }
+
+    private static synchronized Method getAddAssetPathMethod() throws NoSuchMethodException {
+        if (addAssetPath == null) {
+            addAssetPath = AssetManager.class.getDeclaredMethod("addAssetPath", String.class);
+            addAssetPath.setAccessible(true);
+        }
+
+        return addAssetPath;
+    }
+
+    private static synchronized Constructor<AssetManager> getAssetManagerConstructor() throws NoSuchMethodException {
+        if (assetManagerConstructor == null) {
+            assetManagerConstructor = AssetManager.class.getDeclaredConstructor();
+            assetManagerConstructor.setAccessible(true);
+        }
+
+        return assetManagerConstructor;
+    }
+
+    /**
+     * Private Resources of an application, which are closed once they have been
+     * discarded from the cache and released by every caller. Guarded by
+     * ISOLATED_RESOURCES.
+     */
+    private static class IsolatedResources {
+
+        private final String sourceDir;
+        private final int sdk;
+        private final Configuration configuration;
+        private final Resources resources;
+        private int users;
+        private boolean isDiscarded;
+
+        private IsolatedResources(String sourceDir, int sdk, Configuration configuration, Resources resources) {
+            this.sourceDir = sourceDir;
+            this.sdk = sdk;
+            this.configuration = new Configuration(configuration);
+            this.resources = resources;
+        }
+
+        /**
+         * @return whether these resources were created from the same version of
+         * the application, for the same sdk level and configuration
+         */
+        private boolean matches(ApplicationInfo info, int sdk, Resources resources) {
+            // an update installs the application to a new directory
+            return this.sdk == sdk && sourceDir != null && sourceDir.equals(info.sourceDir)
+                    && configuration.equals(resources.getConfiguration());
+        }
+
+        private Resources use() {
+            users++;
+            ISOLATED_RESOURCES_IN_USE.put(resources, this);
+            return resources;
+        }
+
+        private void release() {
+            if (users > 0 && --users == 0) {
+                ISOLATED_RESOURCES_IN_USE.remove(resources);
+                if (isDiscarded)
+                    resources.getAssets().close();
+            }
+        }
+
+        private void discard() {
+            isDiscarded = true;
+            if (users == 0)
+                resources.getAssets().close();
+        }
+    }
+
+    /**
+     * Returns the smallest standard density at which a drawable of the given size
+     * is at least the given amount of pixels wide, without exceeding the density
+     * of the device.
+     *
+     * @param resources the resources to obtain the device density from
+     * @param sizePx    the minimum size of the drawable, in pixels
+     * @param sizeDp    the size of the drawable, in dp
+     * @return the density to load the drawable at
+     */
+    public static int getDensityForSize(Resources resources, int sizePx, float sizeDp) {
+        int deviceDensity = resources.getDisplayMetrics().densityDpi;
+        float requiredDensity = sizePx * DisplayMetrics.DENSITY_DEFAULT / sizeDp;
+        for (int density : DENSITIES) {
+            if (density >= deviceDensity)
+                break;
+            else if (density >= requiredDensity)
+                return density;
+        }
+
+        return deviceDensity;
+    }
+
+    /**
+     * Loads a drawable from the smallest density variant that is large enough
+     * to be displayed at the given size, rather than the variant for the density
+     * of the device.
+     *
+     * @param resources the resources to load the drawable from
+     * @param id        the resource id of the drawable
+     * @param theme     the theme to load the drawable with
+     * @param sizePx    the size that the drawable will be displayed at, in pixels, or 0 to use the device density
+     * @param sizeDp    the size of the drawable, in dp
+     * @return the drawable
+     * @throws Resources.NotFoundException if the drawable does not exist
+     */
+    @Nullable
+    public static Drawable getDrawableForSize(Resources resources, int id, @Nullable Resources.Theme theme, int sizePx, float sizeDp) throws Resources.NotFoundException {
+        if (sizePx <= 0)
+            return ResourcesCompat.getDrawable(resources, id, theme);
+        else return ResourcesCompat.getDrawableForDensity(resources, id, getDensityForSize(resources, sizePx, sizeDp), theme);
+    }
+
 }
@@ -0,0 +1,106 @@
+package james.adaptiveicon;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.graphics.drawable.BitmapDrawable;
+import android.os.Build;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.P)
+public class LayerInternerTest {
+
+    private static final int SIZE = 16;
+
+    @Test
+    public void sharesBitmapsWithTheSameContents() {
+        LayerInterner interner = new LayerInterner();
+        Bitmap first = createBitmap(Color.RED), second = createBitmap(Color.RED), other = createBitmap(Color.BLUE);
+
+        assertSame(first, interner.intern(first));
+        assertSame(first, interner.intern(second));
+        assertSame(other, interner.intern(other));
+        assertEquals(2, interner.size());
+
+        assertFalse(interner.release(first));
+        assertTrue(interner.release(first));
+        assertTrue(interner.release(other));
+        assertEquals(0, interner.size());
+    }
+
+    @Test
+    public void doesNotRecycleBitmapsOfDrawables() {
+        LayerInterner interner = new LayerInterner();
+        Bitmap bitmap = createBitmap(Color.RED);
+
+        assertSame(bitmap, interner.intern(bitmap, false));
+        assertSame(bitmap, interner.intern(createBitmap(Color.RED)));
+        assertFalse(interner.release(bitmap));
+        assertFalse(interner.release(bitmap));
+        assertEquals(0, interner.size());
+    }
+
+    /**
+     * A shares the bitmap of its drawable, C shares it too, A is evicted and
+     * C is recycled. The bitmap still belongs to A's drawable, so it must not
+     * be recycled, and A must be able to create its bitmaps again.
+     */
+    @Test
+    public void evictedIconKeepsTheBitmapOfItsDrawable() {
+        Resources resources = RuntimeEnvironment.application.getResources();
+        LayerInterner interner = new LayerInterner();
+        Bitmap bitmap = createBitmap(Color.RED);
+
+        AdaptiveIcon a = new AdaptiveIcon(new BitmapDrawable(resources, bitmap), null, 1);
+        a.setInterner(interner);
+        assertSame(bitmap, a.getFgBitmap());
+
+        AdaptiveIcon c = new AdaptiveIcon(new BitmapDrawable(resources, createBitmap(Color.RED)), null, 1);
+        c.setInterner(interner);
+        assertSame(bitmap, c.getFgBitmap());
+
+        assertTrue(a.evict(new IconMemoryGovernor()));
+        c.recycle();
+        assertFalse(bitmap.isRecycled());
+
+        assertSame(bitmap, a.getFgBitmap());
+        a.recycle();
+        assertFalse(bitmap.isRecycled());
+        assertEquals(0, interner.size());
+    }
+
+    @Test
+    public void lastIconRecyclesBitmapsThatItOwns() {
+        LayerInterner interner = new LayerInterner();
+        Bitmap bitmap = createBitmap(Color.RED);
+
+        AdaptiveIcon a = new AdaptiveIcon(bitmap, null, 1);
+        a.setInterner(interner);
+        AdaptiveIcon c = new AdaptiveIcon(createBitmap(Color.RED), null, 1);
+        c.setInterner(interner);
+        assertSame(bitmap, c.getFgBitmap());
+
+        a.recycle();
+        assertFalse(bitmap.isRecycled());
+        c.recycle();
+        assertTrue(bitmap.isRecycled());
+    }
+
+    private static Bitmap createBitmap(int color) {
+        Bitmap bitmap = Bitmap.createBitmap(SIZE, SIZE, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(color);
+        return bitmap;
+    }
+
+}
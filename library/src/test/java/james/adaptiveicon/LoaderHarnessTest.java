@@ -0,0 +1,247 @@
+package james.adaptiveicon;
+
+import android.content.Context;
+import android.content.pm.ActivityInfo;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.drawable.AdaptiveIconDrawable;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.ColorDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Build;
+import androidx.annotation.Nullable;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Loads the icons of a few hundred generated packages through a Loader, and
+ * reports the time and memory allocated by each load, the time of each stage
+ * and how often each stage produced the icon. The packages and their order
+ * are generated from a fixed seed, so reports from different commits can be
+ * compared line by line:
+ *
+ * ./gradlew :library:testDebugUnitTest --tests '*LoaderHarnessTest'
+ *
+ * The report is written to library/build/reports/load-harness.txt.
+ *
+ * Robolectric does not rasterize anything, and the packages have no APKs, so
+ * this measures the overhead of the loading pipeline itself - resolving each
+ * stage, the fallback order, the tier cache and the allocations around them -
+ * rather than the cost of decoding and drawing real icons on a device.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.P)
+public class LoaderHarnessTest {
+
+    private static final int PACKAGES = 400;
+    private static final long SEED = 41;
+    private static final int ICON_SIZE = 192;
+    private static final int LEGACY_SIZE = 144;
+    private static final int LAYER_SIZE = 432;
+
+    private static final int TYPE_ADAPTIVE = 0;
+    // legacy icons of packages that declare a round icon, which RoundIconFallback cannot read without
+    // an APK, so these measure how much its failed lookups add before the legacy icon is used
+    private static final int TYPE_ROUND = 1;
+    private static final int TYPE_LEGACY = 2;
+    private static final int TYPE_LEGACY_SHADOW = 3;
+    private static final int TYPE_BROKEN = 4;
+    private static final String[] TYPE_NAMES = {"adaptive", "round", "legacy", "legacy+shadow", "broken"};
+
+    @Test
+    public void loadSyntheticPackages() throws IOException {
+        Context context = RuntimeEnvironment.application;
+        List<SyntheticPackage> packages = generatePackages(context, new Random(SEED));
+
+        AdaptiveIcon.Loader loader = new AdaptiveIcon.Loader()
+                .with(context)
+                .size(ICON_SIZE)
+                .fallback(new AdaptiveIcon.Loader.RoundIconFallback()
+                        .withFallback(new AdaptiveIcon.Loader.LegacyIconFallback()));
+
+        StringBuilder report = new StringBuilder();
+        report.append(String.format(Locale.US, "%d packages, seed %d:", packages.size(), SEED));
+        int[] counts = new int[TYPE_NAMES.length];
+        for (SyntheticPackage syntheticPackage : packages) {
+            counts[syntheticPackage.type]++;
+        }
+        for (int i = 0; i < TYPE_NAMES.length; i++) {
+            report.append(String.format(Locale.US, " %d %s", counts[i], TYPE_NAMES[i]));
+        }
+
+        // the first pass starts with empty caches; the second starts from the tiers that worked in the first
+        for (String pass : new String[]{"cold", "warm"}) {
+            LoadStats stats = new LoadStats();
+            loader.stats(stats);
+
+            long allocated = getAllocatedBytes();
+            for (SyntheticPackage syntheticPackage : packages) {
+                AdaptiveIcon icon = loader.load(syntheticPackage.info);
+                if (syntheticPackage.type == TYPE_BROKEN)
+                    assertNull(syntheticPackage.info.activityInfo.packageName, icon);
+                else assertNotNull(syntheticPackage.info.activityInfo.packageName, icon);
+            }
+
+            allocated = allocated >= 0 ? getAllocatedBytes() - allocated : -1;
+            report.append("\n\n").append(pass).append(" pass, ")
+                    .append(allocated >= 0 ? String.format(Locale.US, "%d bytes allocated per load", allocated / packages.size()) : "allocations not available on this JVM")
+                    .append('\n').append(stats);
+        }
+
+        File file = new File("build/reports/load-harness.txt");
+        file.getParentFile().mkdirs();
+        Writer writer = new FileWriter(file);
+        try {
+            writer.write(report.toString());
+            writer.write('\n');
+        } finally {
+            writer.close();
+        }
+
+        System.out.println(report);
+    }
+
+    /**
+     * Installs the generated packages (except for the broken ones) in
+     * Robolectric's package manager, in a random but reproducible order.
+     */
+    private static List<SyntheticPackage> generatePackages(Context context, Random random) {
+        PackageManager packageManager = context.getPackageManager();
+        List<SyntheticPackage> packages = new ArrayList<>();
+        for (int i = 0; i < PACKAGES; i++) {
+            // roughly the mix of a launcher on a recent device: mostly adaptive, then legacy icons
+            int roll = random.nextInt(100);
+            int type = roll < 55 ? TYPE_ADAPTIVE : roll < 65 ? TYPE_ROUND : roll < 80 ? TYPE_LEGACY : roll < 95 ? TYPE_LEGACY_SHADOW : TYPE_BROKEN;
+            SyntheticPackage syntheticPackage = new SyntheticPackage(context.getResources(), "com.example.synthetic" + i, type, random);
+            if (type != TYPE_BROKEN)
+                shadowOf(packageManager).installPackage(syntheticPackage.packageInfo);
+
+            packages.add(syntheticPackage);
+        }
+
+        return packages;
+    }
+
+    /**
+     * @return the amount of bytes allocated by the current thread so far, or -1 if the JVM does not count them
+     */
+    private static long getAllocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+
+        return -1;
+    }
+
+    private static class SyntheticPackage {
+
+        private final Resources resources;
+        private final int type;
+        private final PackageInfo packageInfo;
+        private final ResolveInfo info;
+        private final int color;
+        @Nullable
+        private final int[] pixels;
+
+        private SyntheticPackage(Resources resources, String packageName, int type, Random random) {
+            this.resources = resources;
+            this.type = type;
+            color = 0xFF000000 | random.nextInt(0x1000000);
+            pixels = type == TYPE_LEGACY || type == TYPE_LEGACY_SHADOW ? createLegacyPixels(color, type == TYPE_LEGACY_SHADOW) : null;
+
+            ApplicationInfo applicationInfo = new ApplicationInfo();
+            applicationInfo.packageName = packageName;
+            // there is no APK, so resources (and a round icon) can never be read from it
+            applicationInfo.sourceDir = "/data/app/" + packageName + "/base.apk";
+
+            packageInfo = new PackageInfo();
+            packageInfo.packageName = packageName;
+            packageInfo.versionCode = 1 + random.nextInt(100);
+            packageInfo.applicationInfo = applicationInfo;
+
+            ActivityInfo activityInfo = new ActivityInfo();
+            activityInfo.packageName = packageName;
+            activityInfo.name = packageName + ".MainActivity";
+            activityInfo.applicationInfo = applicationInfo;
+
+            info = new SyntheticResolveInfo(this);
+            info.activityInfo = activityInfo;
+        }
+
+        /**
+         * Creates the icon that the platform would load for the package, a new
+         * drawable for each call, as the package manager does.
+         */
+        private Drawable createIcon() {
+            switch (type) {
+                case TYPE_ADAPTIVE:
+                    Bitmap foreground = Bitmap.createBitmap(LAYER_SIZE, LAYER_SIZE, Bitmap.Config.ARGB_8888);
+                    return new AdaptiveIconDrawable(new ColorDrawable(color), new BitmapDrawable(resources, foreground));
+                case TYPE_ROUND:
+                    return new BitmapDrawable(resources, Bitmap.createBitmap(LEGACY_SIZE, LEGACY_SIZE, Bitmap.Config.ARGB_8888));
+                case TYPE_LEGACY:
+                case TYPE_LEGACY_SHADOW:
+                    return new BitmapDrawable(resources, Bitmap.createBitmap(pixels, LEGACY_SIZE, LEGACY_SIZE, Bitmap.Config.ARGB_8888));
+                default:
+                    throw new Resources.NotFoundException("No icon for " + packageInfo.packageName);
+            }
+        }
+
+        /**
+         * Creates a round legacy icon in a flat color, optionally surrounded by
+         * a translucent shadow.
+         */
+        private static int[] createLegacyPixels(int color, boolean hasShadow) {
+            int[] pixels = new int[LEGACY_SIZE * LEGACY_SIZE];
+            float center = LEGACY_SIZE / 2f, radius = LEGACY_SIZE * 0.42f, shadow = LEGACY_SIZE * 0.48f;
+            for (int y = 0; y < LEGACY_SIZE; y++) {
+                for (int x = 0; x < LEGACY_SIZE; x++) {
+                    float distance = (float) Math.hypot(x - center, y - center);
+                    if (distance < radius)
+                        pixels[y * LEGACY_SIZE + x] = color;
+                    else if (hasShadow && distance < shadow)
+                        pixels[y * LEGACY_SIZE + x] = ((int) (64 * (shadow - distance) / (shadow - radius))) << 24;
+                }
+            }
+
+            return pixels;
+        }
+    }
+
+    private static class SyntheticResolveInfo extends ResolveInfo {
+
+        private final SyntheticPackage syntheticPackage;
+
+        private SyntheticResolveInfo(SyntheticPackage syntheticPackage) {
+            this.syntheticPackage = syntheticPackage;
+        }
+
+        @Override
+        public Drawable loadIcon(PackageManager packageManager) {
+            return syntheticPackage.createIcon();
+        }
+    }
+
+}
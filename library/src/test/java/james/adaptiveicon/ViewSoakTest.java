@@ -0,0 +1,187 @@
+package james.adaptiveicon;
+
+import android.app.Activity;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.ColorDrawable;
+import android.os.Build;
+import android.view.View;
+import android.widget.FrameLayout;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Binds and recycles thousands of icons through a set of AdaptiveIconViews,
+ * detaching and reattaching the views between rounds as a RecyclerView does,
+ * and fails if the memory held by the views, the icons and the interner
+ * keeps growing, if a replaced icon keeps its bitmaps, or if scaling the
+ * layers of an icon throws on the layer executor. The previous icon of each
+ * view is recycled as soon as the view has moved on, while its layers may
+ * still be being scaled.
+ *
+ * The sample app's SoakActivity runs the same check on a device, where the
+ * native heap can be measured as well.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.P)
+public class ViewSoakTest {
+
+    private static final int VIEWS = 24;
+    private static final int VIEW_SIZE = 144;
+    private static final int BINDS_PER_ROUND = 5;
+    private static final int ROUNDS = 20;
+    // rounds to run before measuring the baseline, while the interner fills up
+    private static final int WARMUP_ROUNDS = 5;
+    private static final long DRAIN_TIMEOUT_MILLIS = 10000;
+
+    private final List<Throwable> uncaught = Collections.synchronizedList(new ArrayList<Throwable>());
+    private Thread.UncaughtExceptionHandler defaultHandler;
+
+    @Before
+    public void setUp() {
+        defaultHandler = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread thread, Throwable throwable) {
+                uncaught.add(throwable);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        Thread.setDefaultUncaughtExceptionHandler(defaultHandler);
+    }
+
+    @Test
+    public void bindAndRecycleIcons() throws InterruptedException {
+        Activity activity = Robolectric.buildActivity(Activity.class).setup().get();
+        FrameLayout container = new FrameLayout(activity);
+        activity.setContentView(container);
+
+        // an unlimited budget, so that the governor only measures memory
+        IconMemoryGovernor governor = new IconMemoryGovernor(Long.MAX_VALUE);
+        LayerInterner interner = new LayerInterner();
+        Random random = new Random(49);
+
+        List<AdaptiveIconView> views = new ArrayList<>();
+        List<AdaptiveIcon> icons = new ArrayList<>();
+        for (int i = 0; i < VIEWS; i++) {
+            AdaptiveIconView view = new AdaptiveIconView(activity);
+            view.setInterner(interner);
+            governor.track(view);
+            views.add(view);
+            icons.add(null);
+        }
+
+        attachViews(container, views);
+        List<Long> retained = new ArrayList<>();
+        for (int round = 0; round < ROUNDS; round++) {
+            List<AdaptiveIcon> replaced = new ArrayList<>();
+            for (int bind = 0; bind < BINDS_PER_ROUND; bind++) {
+                // bind a new icon to every view, recycling the previous one as an adapter would
+                for (int i = 0; i < views.size(); i++) {
+                    AdaptiveIcon icon = createIcon(activity, random).prepare();
+                    AdaptiveIcon previous = icons.set(i, icon);
+                    governor.track(icon);
+                    views.get(i).setIcon(icon);
+                    if (previous != null) {
+                        previous.recycle();
+                        replaced.add(previous);
+                    }
+                }
+            }
+
+            drain();
+            container.removeAllViews();
+            drain();
+
+            for (AdaptiveIcon icon : replaced) {
+                assertEquals("a replaced icon kept its bitmaps", 0, icon.getByteCount());
+            }
+
+            retained.add(governor.getByteCount() + interner.getByteCount());
+            attachViews(container, views);
+        }
+
+        if (!uncaught.isEmpty())
+            throw new AssertionError("Scaling the layers of an icon threw", uncaught.get(0));
+
+        long baseline = 0;
+        for (int i = WARMUP_ROUNDS; i < WARMUP_ROUNDS * 2; i++) {
+            baseline = Math.max(baseline, retained.get(i));
+        }
+
+        long last = Long.MAX_VALUE;
+        for (int i = retained.size() - WARMUP_ROUNDS; i < retained.size(); i++) {
+            last = Math.min(last, retained.get(i));
+        }
+
+        assertTrue("retained " + last + " bytes at the end, over a baseline of " + baseline + " bytes: " + retained,
+                last <= baseline + baseline / 4);
+    }
+
+    private static void attachViews(FrameLayout container, List<AdaptiveIconView> views) {
+        int spec = View.MeasureSpec.makeMeasureSpec(VIEW_SIZE, View.MeasureSpec.EXACTLY);
+        for (AdaptiveIconView view : views) {
+            container.addView(view, new FrameLayout.LayoutParams(VIEW_SIZE, VIEW_SIZE));
+            view.measure(spec, spec);
+            view.layout(0, 0, VIEW_SIZE, VIEW_SIZE);
+        }
+    }
+
+    /**
+     * Waits for the layer executor to finish its tasks, and runs the results
+     * that they posted to the main thread.
+     */
+    private static void drain() throws InterruptedException {
+        ThreadPoolExecutor executor = (ThreadPoolExecutor) AdaptiveIconView.LAYER_EXECUTOR;
+        long end = System.currentTimeMillis() + DRAIN_TIMEOUT_MILLIS;
+        do {
+            while (executor.getActiveCount() > 0 || !executor.getQueue().isEmpty()) {
+                if (System.currentTimeMillis() > end)
+                    fail("The layer executor did not finish its tasks");
+
+                Thread.sleep(5);
+            }
+
+            ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        } while (executor.getActiveCount() > 0 || !executor.getQueue().isEmpty());
+    }
+
+    /**
+     * Creates an icon with a plain background - from a small set of colors,
+     * so that some of them are interned - and a randomly colored foreground,
+     * as a stand-in for a loaded icon.
+     */
+    private static AdaptiveIcon createIcon(Activity activity, Random random) {
+        int[] backgrounds = {Color.WHITE, 0xFF2196F3, 0xFF4CAF50, 0xFFFFC107};
+        Bitmap foreground = Bitmap.createBitmap(96, 96, Bitmap.Config.ARGB_8888);
+        Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        paint.setColor(Color.HSVToColor(new float[]{random.nextInt(360), 0.8f, 0.8f}));
+        new Canvas(foreground).drawCircle(48, 48, 16 + random.nextInt(16), paint);
+
+        return new AdaptiveIcon(new BitmapDrawable(activity.getResources(), foreground), new ColorDrawable(backgrounds[random.nextInt(backgrounds.length)]), 0.5);
+    }
+
+}